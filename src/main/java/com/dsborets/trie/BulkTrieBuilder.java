@@ -0,0 +1,214 @@
+package com.dsborets.trie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builder of the trie nodes from searchable keys sorted by key in one pass.
+ * The keys sharing a prefix are adjacent in the sorted order, so every node is built once with its children array
+ * sized to the actual fanout and its posting list created at once from the ids of the keys passing through the node,
+ * without lookups, splits and copy-on-write of the children which the key by key insertion takes.
+ * The entry keys are encoded to ids in the order of the sorted keys, and the references to an id are counted after
+ * all the nodes are built.
+ * <p>
+ * The subtrees of different chars are independent, so the keys are sorted and the subtrees are built in parallel
+ * on a {@link ForkJoinPool}: a range of keys large enough is split by the next char into a task per child, so the
+ * subtree of a frequent first char is split again by the second char and so on.
+ */
+class BulkTrieBuilder<K> {
+  // less keys are built by the current task
+  private static final int PARALLEL_THRESHOLD = 8192;
+
+  private final int minSearchableKeyLength;
+
+  private final boolean pathCompression;
+
+  private final boolean terminalPostings;
+
+  private final Map.Entry<String, EntryKey>[] entries;
+
+  private String[] keys;
+
+  private final PostingDictionary dictionary;
+
+  private int[] ids;
+
+  private AtomicIntegerArray refs;
+
+  private final LongAdder nodeSize = new LongAdder();
+
+  /**
+   * @param minSearchableKeyLength - min length of a key to be searchable
+   * @param pathCompression        - whether chains of single child nodes are collapsed
+   * @param terminalPostings       - whether an entry key is kept only by the node its key ends at
+   * @param entries                - searchable keys with related values (sorted in place)
+   * @param dictionary             - an empty dictionary to encode the entry keys with
+   */
+  BulkTrieBuilder(int minSearchableKeyLength, boolean pathCompression, boolean terminalPostings,
+                  Map.Entry<String, EntryKey>[] entries, PostingDictionary dictionary) {
+    this.minSearchableKeyLength = minSearchableKeyLength;
+    this.pathCompression = pathCompression;
+    this.terminalPostings = terminalPostings;
+    this.entries = entries;
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Build the nodes
+   *
+   * @param pool - the pool to sort the keys and build the subtrees in
+   * @return the first level nodes sorted by char or null if there are no keys
+   */
+  TrieNode<K>[] build(ForkJoinPool pool) {
+    return pool.invoke(new RecursiveTask<TrieNode<K>[]>() {
+      @Override
+      protected TrieNode<K>[] compute() {
+        // sorting keys sorted in advance is linear
+        Arrays.parallelSort(entries, Map.Entry.comparingByKey());
+        keys = new String[entries.length];
+        ids = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+          keys[i] = entries[i].getKey();
+          ids[i] = dictionary.acquire(entries[i].getValue(), 0);
+        }
+        refs = new AtomicIntegerArray(dictionary.getIdLimit());
+
+        TrieNode<K>[] children = buildChildren(0, keys.length, 0);
+        // the ids without postings (of the keys too short to be searchable) are released
+        for (int id = 0; id < refs.length(); id++) {
+          dictionary.retain(id, refs.get(id));
+        }
+        return children;
+      }
+    });
+  }
+
+  /**
+   * Get amount of the built nodes
+   *
+   * @return amount of the nodes
+   */
+  int getNodeSize() {
+    return nodeSize.intValue();
+  }
+
+  /**
+   * Build the children of the node the keys of the range pass through
+   *
+   * @param from  - the first key of the range
+   * @param to    - the key following the range
+   * @param depth - length of the node prefix
+   * @return the children sorted by char or null
+   */
+  @SuppressWarnings("unchecked")
+  private TrieNode<K>[] buildChildren(int from, int to, int depth) {
+    // the keys ending at the node go first
+    while (from < to && keys[from].length() == depth) {
+      from++;
+    }
+    if (from == to)
+      return null;
+
+    boolean parallel = to - from >= PARALLEL_THRESHOLD;
+    List<TrieNode<K>> children = new ArrayList<>();
+    List<NodeTask> tasks = parallel ? new ArrayList<>() : null;
+    int start = from;
+    while (start < to) {
+      char c = keys[start].charAt(depth);
+      int end = start + 1;
+      while (end < to && keys[end].charAt(depth) == c) {
+        end++;
+      }
+      if (parallel) {
+        tasks.add(new NodeTask(start, end, depth));
+      } else {
+        children.add(buildNode(start, end, depth));
+      }
+      start = end;
+    }
+
+    if (parallel) {
+      ForkJoinTask.invokeAll(tasks);
+      for (NodeTask task : tasks) {
+        children.add(task.join());
+      }
+    }
+    return children.toArray(new TrieNode[children.size()]);
+  }
+
+  /**
+   * Build the node of the keys of the range (the keys have the same char at the depth)
+   *
+   * @param from  - the first key of the range
+   * @param to    - the key following the range
+   * @param depth - length of the parent prefix
+   * @return the node
+   */
+  private TrieNode<K> buildNode(int from, int to, int depth) {
+    String first = keys[from];
+    String last = keys[to - 1];
+
+    // the common prefix of the first and the last sorted keys is common for the range, and no key ends inside it
+    int labelEnd = depth + 1;
+    if (pathCompression) {
+      while (labelEnd < first.length() && labelEnd < last.length() && first.charAt(labelEnd) == last.charAt(labelEnd)) {
+        labelEnd++;
+      }
+    }
+
+    TrieNode<K> node;
+    if (labelEnd - depth == 1) {
+      node = new TrieNode<>(first.charAt(depth));
+    } else {
+      char[] tail = new char[labelEnd - depth - 1];
+      first.getChars(depth + 1, labelEnd, tail, 0);
+      node = new RadixTrieNode<>(first.charAt(depth), tail);
+    }
+    nodeSize.increment();
+
+    if (labelEnd >= minSearchableKeyLength) {
+      int valuesTo = to;
+      if (terminalPostings) {
+        valuesTo = from;
+        while (valuesTo < to && keys[valuesTo].length() == labelEnd) {
+          valuesTo++;
+        }
+      }
+      if (valuesTo > from) {
+        PostingList list = PostingList.of(dictionary, Arrays.copyOfRange(ids, from, valuesTo), valuesTo - from);
+        list.forEachId(refs::incrementAndGet);
+        node.setValues(list);
+      }
+    }
+
+    node.setChildren(buildChildren(from, to, labelEnd));
+    return node;
+  }
+
+  /**
+   * Build of the node of a range of keys
+   */
+  private class NodeTask extends RecursiveTask<TrieNode<K>> {
+    private final int from;
+    private final int to;
+    private final int depth;
+
+    NodeTask(int from, int to, int depth) {
+      this.from = from;
+      this.to = to;
+      this.depth = depth;
+    }
+
+    @Override
+    protected TrieNode<K> compute() {
+      return buildNode(from, to, depth);
+    }
+  }
+}
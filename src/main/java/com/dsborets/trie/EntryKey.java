@@ -5,20 +5,20 @@ package com.dsborets.trie;
  *
  * @author dsborets on 10/1/16
  */
-class EntryKey<I, K> {
-  private I cacheId;
-  private K key;
+public final class EntryKey<I, K> {
+  private final I cacheId;
+  private final K key;
 
   EntryKey(I cacheId, K key) {
     this.cacheId = cacheId;
     this.key = key;
   }
 
-  I getCacheId() {
+  public I getCacheId() {
     return cacheId;
   }
 
-  K getKey() {
+  public K getKey() {
     return key;
   }
 
@@ -40,4 +40,9 @@ class EntryKey<I, K> {
     result = 31 * result + key.hashCode();
     return result;
   }
-}
\ No newline at end of file
+
+  @Override
+  public String toString() {
+    return "EntryKey{cacheId=" + cacheId + ", key=" + key + '}';
+  }
+}
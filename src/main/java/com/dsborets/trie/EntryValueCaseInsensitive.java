@@ -2,9 +2,13 @@ package com.dsborets.trie;
 
 import org.apache.commons.lang.StringUtils;
 
+import java.util.Locale;
+
 /**
  * Cache entry value interface.
- * "getKey" should return a real prefix tree searching key
+ * "getKey" should return a real prefix tree searching key.
+ * The key is lower cased regardless of the default locale (see {@link KeyNormalizer#caseFold()} to fold the
+ * search keys the same way)
  *
  * @author dsborets on 10/1/16
  */
@@ -12,7 +16,7 @@ public interface EntryValueCaseInsensitive extends EntryValue{
 
   @Override
   default String getKey() {
-    return StringUtils.isNotEmpty(setKey()) ? setKey().toLowerCase() : null;
+    return StringUtils.isNotEmpty(setKey()) ? setKey().toLowerCase(Locale.ROOT) : null;
   }
 
   String setKey();
@@ -0,0 +1,634 @@
+package com.dsborets.trie;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable (frozen) part of the trie index kept in a memory mapped file instead of node objects, so it's out of
+ * the heap and never scanned by GC. The nodes are read by offsets in the file: the children of a node are kept
+ * sorted by char right after its label and entry keys, so a lookup is a binary search over the flat records.
+ * Only the table of the entry keys {@link EntryKey} is kept in the heap, the nodes refer to them by position.
+ * <p>
+ * A node record (the nodes are written in depth-first post-order, so the root is the last one):
+ * <pre>
+ * label length, label chars, amount of entry keys, entry key positions, amount of children, (char, offset) per child
+ * </pre>
+ * The segment is compiled from the previous segment and the mutable nodes of the recent writes (see
+ * {@link #compile}), the entry keys written after the segment is compiled are masked by the tombstones of the index.
+ */
+class FrozenTrieSegment {
+  private static final int MAGIC = 0x46524f5a;
+
+  private final ByteBuffer buffer;
+
+  private final EntryKey[] entryKeys;
+
+  private final int root;
+
+  private final int nodeSize;
+
+  private final boolean terminalPostings;
+
+  private FrozenTrieSegment(ByteBuffer buffer, EntryKey[] entryKeys, int root, int nodeSize,
+                            boolean terminalPostings) {
+    this.buffer = buffer;
+    this.entryKeys = entryKeys;
+    this.root = root;
+    this.nodeSize = nodeSize;
+    this.terminalPostings = terminalPostings;
+  }
+
+  int getNodeSize() {
+    return nodeSize;
+  }
+
+  int getRoot() {
+    return root;
+  }
+
+  /**
+   * Search the last node based on the sequence of chars (key)
+   *
+   * @param key - trie key
+   * @return offset of the last node of the sequence (the key may end in the middle of its label) or -1
+   */
+  int searchLastNode(CharSequence key) {
+    int length = key.length();
+    int node = root;
+    int offset = 0;
+    while (offset < length) {
+      int nextNode = getChild(node, key.charAt(offset));
+      if (nextNode < 0)
+        return -1;
+
+      int labelLength = getLabelLength(nextNode);
+      int matched = 1;
+      while (matched < labelLength && offset + matched < length
+              && key.charAt(offset + matched) == getLabelChar(nextNode, matched)) {
+        matched++;
+      }
+      if (matched < labelLength && offset + matched < length)
+        return -1;
+
+      offset += labelLength;
+      node = nextNode;
+    }
+    return node;
+  }
+
+  /**
+   * Search the last node based on a range of a char array
+   *
+   * @param chars  - chars of the trie key
+   * @param from   - offset of the key in the array
+   * @param length - key length
+   * @return offset of the last node of the sequence (the key may end in the middle of its label) or -1
+   */
+  int searchLastNode(char[] chars, int from, int length) {
+    int to = from + length;
+    int node = root;
+    int offset = from;
+    while (offset < to) {
+      int nextNode = getChild(node, chars[offset]);
+      if (nextNode < 0)
+        return -1;
+
+      int labelLength = getLabelLength(nextNode);
+      int matched = 1;
+      while (matched < labelLength && offset + matched < to && chars[offset + matched] == getLabelChar(nextNode, matched)) {
+        matched++;
+      }
+      if (matched < labelLength && offset + matched < to)
+        return -1;
+
+      offset += labelLength;
+      node = nextNode;
+    }
+    return node;
+  }
+
+  /**
+   * Iterate the entry keys of the values the key of the node is a prefix of
+   *
+   * @param node       - offset of the node
+   * @param tombstones - the entry keys to skip
+   * @return iterator of the entry keys
+   */
+  Iterator<EntryKey> iterator(int node, Set<EntryKey> tombstones) {
+    return new PostingsIterator(node, tombstones);
+  }
+
+  /**
+   * Count the entry keys of the values the key of the node is a prefix of
+   *
+   * @param node       - offset of the node
+   * @param tombstones - the entry keys to skip
+   * @return amount of the entry keys
+   */
+  int count(int node, Set<EntryKey> tombstones) {
+    if (!terminalPostings && tombstones.isEmpty())
+      return buffer.getInt(getPostings(node));
+
+    int count = 0;
+    for (Iterator<EntryKey> iterator = iterator(node, tombstones); iterator.hasNext(); iterator.next()) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Fill the rows of the node label chars, collect the entry keys of the node if its label is close enough
+   * to the key and go on with the children if they may be closer (see {@link TrieIndex#searchFuzzy})
+   *
+   * @param node                   - offset of the node
+   * @param key                    - trie key
+   * @param rows                   - rows of the Levenshtein matrix by depth
+   * @param depth                  - depth of the parent node (the row of the parent is filled)
+   * @param maxEdits               - max edit distance
+   * @param minSearchableKeyLength - min length of a key to be searchable
+   * @param tombstones             - the entry keys to skip
+   * @param distances              - the distance by entry key
+   */
+  void searchFuzzy(int node, CharSequence key, int[][] rows, int depth, int maxEdits, int minSearchableKeyLength,
+                   Set<EntryKey> tombstones, Map<EntryKey, Integer> distances) {
+    int length = key.length();
+    int labelLength = getLabelLength(node);
+
+    int best = Integer.MAX_VALUE;
+    int rowMin = 0;
+    for (int i = 0; i < labelLength; i++) {
+      rowMin = TrieIndex.fillRow(rows[depth], rows[++depth], key, getLabelChar(node, i));
+      if (depth >= minSearchableKeyLength) {
+        best = Math.min(best, rows[depth][length]);
+      }
+      if (rowMin > maxEdits)
+        break;
+    }
+
+    if (best <= maxEdits) {
+      int distance = best;
+      iterator(node, tombstones).forEachRemaining(value -> distances.merge(value, distance, Math::min));
+    }
+
+    if (rowMin > maxEdits || (depth >= minSearchableKeyLength && rows[depth][length] == rowMin))
+      return;
+
+    int children = getChildren(node);
+    int childrenLength = buffer.getInt(children);
+    for (int i = 0; i < childrenLength; i++) {
+      searchFuzzy(getChildAt(children, i), key, rows, depth, maxEdits, minSearchableKeyLength, tombstones, distances);
+    }
+  }
+
+  /**
+   * Compile a segment of the previous segment and the mutable nodes, and map it from the file
+   *
+   * @param file                   - segment file (replaced when the segment is complete)
+   * @param frozen                 - the previous segment or null
+   * @param tombstones             - the entry keys of the previous segment to skip
+   * @param root                   - root of the mutable nodes
+   * @param minSearchableKeyLength - min length of a key to be searchable
+   * @param pathCompression        - whether chains of single child nodes are collapsed
+   * @param terminalPostings       - whether an entry key is kept only by the node its key ends at
+   * @return the segment
+   * @throws IOException in case of an I/O error
+   */
+  static FrozenTrieSegment compile(Path file, FrozenTrieSegment frozen, Set<EntryKey> tombstones, TrieNode<?> root,
+                                   int minSearchableKeyLength, boolean pathCompression, boolean terminalPostings)
+          throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    Compiler compiler;
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      compiler = new Compiler(out, frozen, tombstones, minSearchableKeyLength, pathCompression, terminalPostings);
+      out.writeInt(MAGIC);
+      int rootOffset = compiler.compileRoot(root);
+      out.writeInt(rootOffset);
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    // the mapping stays valid when the channel is closed
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int rootOffset = buffer.getInt((int) channel.size() - 4);
+      return new FrozenTrieSegment(buffer, compiler.getEntryKeys(), rootOffset, compiler.nodeSize, terminalPostings);
+    }
+  }
+
+  private int getLabelLength(int node) {
+    return buffer.getInt(node);
+  }
+
+  private char getLabelChar(int node, int i) {
+    return buffer.getChar(node + 4 + 2 * i);
+  }
+
+  private int getPostings(int node) {
+    return node + 4 + 2 * getLabelLength(node);
+  }
+
+  private int getChildren(int node) {
+    int postings = getPostings(node);
+    return postings + 4 + 4 * buffer.getInt(postings);
+  }
+
+  private char getChildCharAt(int children, int i) {
+    return buffer.getChar(children + 4 + 6 * i);
+  }
+
+  private int getChildAt(int children, int i) {
+    return buffer.getInt(children + 6 + 6 * i);
+  }
+
+  private int getChild(int node, char c) {
+    int children = getChildren(node);
+    int low = 0;
+    int high = buffer.getInt(children) - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char midChar = getChildCharAt(children, mid);
+      if (midChar < c)
+        low = mid + 1;
+      else if (midChar > c)
+        high = mid - 1;
+      else
+        return getChildAt(children, mid);
+    }
+    return -1;
+  }
+
+  /**
+   * Iterator over the entry keys of a node, in the terminal postings mode over the entry keys of the subtree
+   * (a value with multiple keys may end at multiple nodes of the subtree, so its entry key is returned only once)
+   */
+  private class PostingsIterator implements Iterator<EntryKey> {
+    private final Set<EntryKey> tombstones;
+    private final Set<EntryKey> visited = terminalPostings ? new HashSet<>() : Collections.emptySet();
+    private int[] stack = new int[16];
+    private int stackSize;
+    private int postings;
+    private int postingsLength;
+    private int postingIndex;
+    private EntryKey next;
+
+    PostingsIterator(int node, Set<EntryKey> tombstones) {
+      this.tombstones = tombstones;
+      stack[stackSize++] = node;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null) {
+        if (postingIndex < postingsLength) {
+          EntryKey value = entryKeys[buffer.getInt(postings + 4 + 4 * postingIndex++)];
+          if (!tombstones.contains(value) && (!terminalPostings || visited.add(value))) {
+            next = value;
+          }
+        } else if (stackSize == 0) {
+          return false;
+        } else {
+          int node = stack[--stackSize];
+          postings = getPostings(node);
+          postingsLength = buffer.getInt(postings);
+          postingIndex = 0;
+          if (terminalPostings) {
+            int children = getChildren(node);
+            int childrenLength = buffer.getInt(children);
+            if (stackSize + childrenLength > stack.length) {
+              stack = Arrays.copyOf(stack, Math.max(stack.length * 2, stackSize + childrenLength));
+            }
+            for (int i = 0; i < childrenLength; i++) {
+              stack[stackSize++] = getChildAt(children, i);
+            }
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public EntryKey next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+
+      EntryKey value = next;
+      next = null;
+      return value;
+    }
+  }
+
+  /**
+   * Node of the segment which is not written yet: the parent decides whether to collapse it with the node
+   */
+  private static class PendingNode {
+    private final StringBuilder reversedLabel = new StringBuilder();
+    private final int[] postings;
+    private final char[] childChars;
+    private final int[] childOffsets;
+
+    PendingNode(char c, int[] postings, char[] childChars, int[] childOffsets) {
+      this.reversedLabel.append(c);
+      this.postings = postings;
+      this.childChars = childChars;
+      this.childOffsets = childOffsets;
+    }
+
+    int getPostingsLength() {
+      return postings != null ? postings.length : 0;
+    }
+  }
+
+  /**
+   * Merge of the previous segment and the mutable nodes char by char, written in depth-first post-order.
+   * The labels of both are walked as chains of chars, so the nodes are split and collapsed again in the path
+   * compression mode, and the nodes without entry keys in their subtrees are dropped
+   */
+  private static class Compiler {
+    private final DataOutputStream out;
+    private final FrozenTrieSegment frozen;
+    private final Set<EntryKey> tombstones;
+    private final int minSearchableKeyLength;
+    private final boolean pathCompression;
+    private final boolean terminalPostings;
+    private final Map<EntryKey, Integer> positions = new HashMap<>();
+    private int nodeSize;
+
+    Compiler(DataOutputStream out, FrozenTrieSegment frozen, Set<EntryKey> tombstones, int minSearchableKeyLength,
+             boolean pathCompression, boolean terminalPostings) {
+      this.out = out;
+      this.frozen = frozen;
+      this.tombstones = tombstones;
+      this.minSearchableKeyLength = minSearchableKeyLength;
+      this.pathCompression = pathCompression;
+      this.terminalPostings = terminalPostings;
+    }
+
+    EntryKey[] getEntryKeys() {
+      EntryKey[] entryKeys = new EntryKey[positions.size()];
+      positions.forEach((entryKey, position) -> entryKeys[position] = entryKey);
+      return entryKeys;
+    }
+
+    int compileRoot(TrieNode<?> root) throws IOException {
+      // the positions are walked with an explicit stack, so the depth of the trie is not limited by the stack
+      Frame rootFrame = new Frame((char) 0, 0, root, root.getLabelLength() - 1, frozen != null ? frozen.root : -1, 0,
+              Collections.emptySet());
+      ArrayDeque<Frame> stack = new ArrayDeque<>();
+      stack.push(rootFrame);
+      while (true) {
+        Frame frame = stack.peek();
+        Frame next = frame.next();
+        if (next != null) {
+          stack.push(next);
+          continue;
+        }
+
+        stack.pop();
+        if (frame == rootFrame)
+          break;
+        PendingNode node = compile(frame);
+        if (node != null) {
+          stack.peek().children.add(node);
+        }
+      }
+
+      List<PendingNode> children = rootFrame.children;
+      PendingNode pendingRoot = new PendingNode((char) 0, null, getChars(children), write(children));
+      pendingRoot.reversedLabel.setLength(0);
+      return write(pendingRoot);
+    }
+
+    /**
+     * Compile the position after a char of the key once the positions following it are compiled
+     *
+     * @param frame - the position
+     * @return the node which is not written yet or null if there are no entry keys in the subtree
+     */
+    private PendingNode compile(Frame frame) throws IOException {
+      List<PendingNode> children = frame.children;
+      if (frame.values.isEmpty() && children.isEmpty())
+        return null;
+
+      int[] postings = frame.values.isEmpty() ? null : toPositions(frame.values);
+
+      if (pathCompression && children.size() == 1) {
+        PendingNode child = children.get(0);
+        // in the prefix mode entry keys of the child are a subset of the node's ones, so the same amount means
+        // that no key ends at the node
+        if (postings == null || (!terminalPostings && postings.length == child.getPostingsLength())) {
+          child.reversedLabel.append(frame.c);
+          return child;
+        }
+      }
+
+      return new PendingNode(frame.c, postings, getChars(children), write(children));
+    }
+
+    /**
+     * Get the entry keys of the position after a char of the key
+     *
+     * @param depth - length of the key
+     * @param node  - the mutable node the position belongs to or null
+     * @param pos   - position of the char in the label of the mutable node
+     * @param fNode - the offset of the frozen node the position belongs to or -1
+     * @param fPos  - position of the char in the label of the frozen node
+     * @return the entry keys of both nodes except the tombstoned ones
+     */
+    private Set<EntryKey> getValues(int depth, TrieNode<?> node, int pos, int fNode, int fPos) {
+      boolean nodeEnd = node != null && pos == node.getLabelLength() - 1;
+      boolean fNodeEnd = fNode >= 0 && fPos == frozen.getLabelLength(fNode) - 1;
+
+      Set<EntryKey> values = new HashSet<>();
+      if (terminalPostings ? nodeEnd : depth >= minSearchableKeyLength && node != null) {
+        Set<EntryKey> nodeValues = node.getValues();
+        if (nodeValues != null) {
+          values.addAll(nodeValues);
+        }
+      }
+      if (terminalPostings ? fNodeEnd : depth >= minSearchableKeyLength && fNode >= 0) {
+        int postings = frozen.getPostings(fNode);
+        int postingsLength = frozen.buffer.getInt(postings);
+        for (int i = 0; i < postingsLength; i++) {
+          EntryKey value = frozen.entryKeys[frozen.buffer.getInt(postings + 4 + 4 * i)];
+          if (!tombstones.contains(value)) {
+            values.add(value);
+          }
+        }
+      }
+      return values;
+    }
+
+    /**
+     * A position after a char of the key in the mutable and the frozen nodes, and the merge of the positions
+     * following it: the next chars of both nodes are merged in order, and the positions of the same char are
+     * compiled together
+     */
+    private final class Frame {
+      private final char c;
+      private final int depth;
+      private final Set<EntryKey> values;
+      private final List<PendingNode> children = new ArrayList<>();
+
+      // the next chars of the mutable node: the next char of its label or the first chars of its children
+      private final char[] chars;
+      private final TrieNode<?>[] nodes;
+      private final int[] positions;
+
+      // the next chars of the frozen node
+      private final char[] fChars;
+      private final int[] fNodes;
+      private final int[] fPositions;
+
+      private int i;
+      private int j;
+
+      Frame(char c, int depth, TrieNode<?> node, int pos, int fNode, int fPos, Set<EntryKey> values) {
+        this.c = c;
+        this.depth = depth;
+        this.values = values;
+
+        if (node == null) {
+          chars = new char[0];
+          nodes = new TrieNode[0];
+          positions = new int[0];
+        } else if (pos < node.getLabelLength() - 1) {
+          chars = new char[]{node.getTail()[pos]};
+          nodes = new TrieNode[]{node};
+          positions = new int[]{pos + 1};
+        } else {
+          nodes = node.getChildren() != null ? node.getChildren() : new TrieNode[0];
+          chars = new char[nodes.length];
+          for (int k = 0; k < nodes.length; k++) {
+            chars[k] = nodes[k].getChar();
+          }
+          positions = new int[nodes.length];
+        }
+
+        if (fNode < 0) {
+          fChars = new char[0];
+          fNodes = new int[0];
+          fPositions = new int[0];
+        } else if (fPos < frozen.getLabelLength(fNode) - 1) {
+          fChars = new char[]{frozen.getLabelChar(fNode, fPos + 1)};
+          fNodes = new int[]{fNode};
+          fPositions = new int[]{fPos + 1};
+        } else {
+          int children = frozen.getChildren(fNode);
+          int childrenLength = frozen.buffer.getInt(children);
+          fChars = new char[childrenLength];
+          fNodes = new int[childrenLength];
+          for (int k = 0; k < childrenLength; k++) {
+            fChars[k] = frozen.getChildCharAt(children, k);
+            fNodes[k] = frozen.getChildAt(children, k);
+          }
+          fPositions = new int[childrenLength];
+        }
+      }
+
+      /**
+       * Take the next following position
+       *
+       * @return the position or null if all the following positions are taken
+       */
+      Frame next() {
+        if (j == fChars.length || (i < chars.length && chars[i] < fChars[j])) {
+          if (i == chars.length)
+            return null;
+          Frame frame = newFrame(chars[i], nodes[i], positions[i], -1, 0);
+          i++;
+          return frame;
+        }
+        if (i == chars.length || fChars[j] < chars[i]) {
+          Frame frame = newFrame(fChars[j], null, 0, fNodes[j], fPositions[j]);
+          j++;
+          return frame;
+        }
+        Frame frame = newFrame(chars[i], nodes[i], positions[i], fNodes[j], fPositions[j]);
+        i++;
+        j++;
+        return frame;
+      }
+
+      private Frame newFrame(char c, TrieNode<?> node, int pos, int fNode, int fPos) {
+        return new Frame(c, depth + 1, node, pos, fNode, fPos, getValues(depth + 1, node, pos, fNode, fPos));
+      }
+    }
+
+    private int[] toPositions(Set<EntryKey> values) {
+      int[] postings = new int[values.size()];
+      int i = 0;
+      for (EntryKey value : values) {
+        Integer position = positions.get(value);
+        if (position == null) {
+          position = positions.size();
+          positions.put(value, position);
+        }
+        postings[i++] = position;
+      }
+      return postings;
+    }
+
+    private int[] write(List<PendingNode> nodes) throws IOException {
+      int[] offsets = new int[nodes.size()];
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = write(nodes.get(i));
+      }
+      return offsets;
+    }
+
+    private int write(PendingNode node) throws IOException {
+      int offset = out.size();
+      if (offset == Integer.MAX_VALUE)
+        throw new RuntimeException("The frozen segment exceeds 2GB");
+
+      String label = node.reversedLabel.reverse().toString();
+      out.writeInt(label.length());
+      out.writeChars(label);
+
+      out.writeInt(node.getPostingsLength());
+      if (node.postings != null) {
+        for (int position : node.postings) {
+          out.writeInt(position);
+        }
+      }
+
+      out.writeInt(node.childChars.length);
+      for (int i = 0; i < node.childChars.length; i++) {
+        out.writeChar(node.childChars[i]);
+        out.writeInt(node.childOffsets[i]);
+      }
+
+      // the root has no label and is not counted as a node
+      if (!label.isEmpty()) {
+        nodeSize++;
+      }
+      return offset;
+    }
+
+    private static char[] getChars(List<PendingNode> nodes) {
+      char[] chars = new char[nodes.size()];
+      for (int i = 0; i < chars.length; i++) {
+        PendingNode node = nodes.get(i);
+        chars[i] = node.reversedLabel.charAt(node.reversedLabel.length() - 1);
+      }
+      return chars;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package com.dsborets.trie;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Analyzer of the searchable keys of a cache, splits a (normalized) key to the tokens which are indexed.
+ * The tokens are passed to a consumer as ranges of the key, so no substrings are created on a write or a removal
+ * of a value. The analyzers are refined by the filters, for example:
+ * <pre>{@code
+ * trie.addCaffeineWithAnalyzer(1, caffeine, loader, null,
+ *     KeyAnalyzer.delimiter(", ").stopWords("and", "of", "the").minTokenLength(2), false);
+ * }</pre>
+ * An analyzer must be deterministic: the key of a value is analyzed again to remove it from the trie.
+ */
+@FunctionalInterface
+public interface KeyAnalyzer {
+
+  /**
+   * Consumer of the tokens of a key
+   */
+  @FunctionalInterface
+  interface TokenConsumer {
+
+    /**
+     * Accept a token
+     *
+     * @param key   - the analyzed key
+     * @param start - offset of the token in the key
+     * @param end   - end of the token in the key (exclusive)
+     */
+    void accept(String key, int start, int end);
+  }
+
+  /**
+   * Split a key to the tokens, empty tokens must not be passed to the consumer
+   *
+   * @param key      - the key
+   * @param consumer - consumer of the tokens
+   */
+  void analyze(String key, TokenConsumer consumer);
+
+  /**
+   * Keep only the tokens of a min length
+   *
+   * @param minLength - min length of a token
+   * @return the analyzer
+   */
+  default KeyAnalyzer minTokenLength(int minLength) {
+    return (key, consumer) -> analyze(key, (k, start, end) -> {
+      if (end - start >= minLength) {
+        consumer.accept(k, start, end);
+      }
+    });
+  }
+
+  /**
+   * Drop the stop words. The tokens are compared with the words as is, so the words are expected in the form of
+   * the normalized keys
+   *
+   * @param words - the stop words
+   * @return the analyzer
+   */
+  default KeyAnalyzer stopWords(String... words) {
+    return stopWords(Arrays.asList(words));
+  }
+
+  /**
+   * Drop the stop words (see {@link #stopWords(String...)})
+   *
+   * @param words - the stop words
+   * @return the analyzer
+   */
+  default KeyAnalyzer stopWords(Collection<String> words) {
+    SortedWords stopWords = new SortedWords(words);
+    return (key, consumer) -> analyze(key, (k, start, end) -> {
+      if (!stopWords.contains(k, start, end)) {
+        consumer.accept(k, start, end);
+      }
+    });
+  }
+
+  /**
+   * Replace every token by its prefixes (edge n-grams) from min to max length, the tokens shorter than the min
+   * length are dropped. It's useful with terminal postings, which find a value by the exact token only
+   *
+   * @param minGram - min length of a prefix
+   * @param maxGram - max length of a prefix
+   * @return the analyzer
+   */
+  default KeyAnalyzer edgeNGrams(int minGram, int maxGram) {
+    if (minGram < 1 || maxGram < minGram)
+      throw new RuntimeException(String.format("Invalid n-gram lengths {%s, %s}", minGram, maxGram));
+
+    return (key, consumer) -> analyze(key, (k, start, end) -> {
+      for (int length = minGram; length <= maxGram && start + length <= end; length++) {
+        consumer.accept(k, start, start + length);
+      }
+    });
+  }
+
+  /**
+   * The whole key is the only token
+   *
+   * @return the analyzer
+   */
+  static KeyAnalyzer keyword() {
+    return (key, consumer) -> {
+      if (!key.isEmpty()) {
+        consumer.accept(key, 0, key.length());
+      }
+    };
+  }
+
+  /**
+   * Split a key by a literal delimiter of any length
+   *
+   * @param delimiter - the delimiter
+   * @return the analyzer
+   */
+  static KeyAnalyzer delimiter(String delimiter) {
+    if (delimiter == null || delimiter.isEmpty())
+      throw new RuntimeException("The delimiter is empty");
+
+    return (key, consumer) -> {
+      int start = 0;
+      int end;
+      while ((end = key.indexOf(delimiter, start)) >= 0) {
+        if (end > start) {
+          consumer.accept(key, start, end);
+        }
+        start = end + delimiter.length();
+      }
+      if (start < key.length()) {
+        consumer.accept(key, start, key.length());
+      }
+    };
+  }
+
+  /**
+   * Split a key by a regular expression like {@link String#split(String)}, the expression is compiled once.
+   * An expression without special chars is split as a literal delimiter
+   *
+   * @param regex - the regular expression of the delimiter
+   * @return the analyzer
+   */
+  static KeyAnalyzer split(String regex) {
+    if (regex == null || regex.isEmpty())
+      throw new RuntimeException("The delimiter is empty");
+
+    if (regex.chars().noneMatch(c -> ".$|()[{^?*+\\".indexOf(c) >= 0))
+      return delimiter(regex);
+
+    Pattern pattern = Pattern.compile(regex);
+    return (key, consumer) -> {
+      Matcher matcher = pattern.matcher(key);
+      int start = 0;
+      while (matcher.find()) {
+        if (matcher.start() > start) {
+          consumer.accept(key, start, matcher.start());
+        }
+        start = matcher.end();
+      }
+      if (start < key.length()) {
+        consumer.accept(key, start, key.length());
+      }
+    };
+  }
+}
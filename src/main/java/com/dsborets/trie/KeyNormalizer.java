@@ -0,0 +1,95 @@
+package com.dsborets.trie;
+
+import java.text.Normalizer;
+
+/**
+ * Normalizer of the keys, applied to the searchable keys of the values when they are indexed and to the search
+ * keys, so a key is found regardless of its Unicode form, case or accents. The normalizers are chained by
+ * {@link #andThen(KeyNormalizer)}, for example:
+ * <pre>{@code
+ * Trie<Integer, Integer, Record> trie = Trie.newBuilder()
+ *     .keyNormalizer(KeyNormalizer.nfkc().andThen(KeyNormalizer.caseFold()).andThen(KeyNormalizer.stripAccents()))
+ *     .build();
+ * }</pre>
+ * A normalizer must be deterministic: the key of a value is normalized again to remove it from the trie.
+ */
+@FunctionalInterface
+public interface KeyNormalizer {
+
+  /**
+   * Normalize a key
+   *
+   * @param key - the key
+   * @return the normalized key
+   */
+  String normalize(String key);
+
+  /**
+   * Chain another normalizer
+   *
+   * @param next - the normalizer applied to the result of this one
+   * @return the chained normalizer
+   */
+  default KeyNormalizer andThen(KeyNormalizer next) {
+    return key -> next.normalize(normalize(key));
+  }
+
+  /**
+   * Canonical composition (NFC), so a char typed with a combining accent (e followed by U+0301) is the same as
+   * the precomposed one (U+00E9)
+   *
+   * @return the normalizer
+   */
+  static KeyNormalizer nfc() {
+    return key -> Normalizer.normalize(key, Normalizer.Form.NFC);
+  }
+
+  /**
+   * Compatibility composition (NFKC): NFC plus folding of compatibility chars, e.g. ligatures ("&#xFB01;" is "fi"),
+   * full width forms and superscripts
+   *
+   * @return the normalizer
+   */
+  static KeyNormalizer nfkc() {
+    return key -> Normalizer.normalize(key, Normalizer.Form.NFKC);
+  }
+
+  /**
+   * Locale independent case folding by code point: a code point is upper cased and then lower cased, so the case
+   * variants of a letter (including the Turkish dotted and dotless i, and the final sigma) end up the same.
+   * Unlike {@link String#toLowerCase()} the result doesn't depend on the default locale. The combining dot above
+   * following an i (the way the dotted capital I is lower cased by {@link String#toLowerCase()}) is dropped
+   *
+   * @return the normalizer
+   */
+  static KeyNormalizer caseFold() {
+    return key -> {
+      StringBuilder sb = new StringBuilder(key.length());
+      int previous = -1;
+      for (int i = 0; i < key.length(); ) {
+        int cp = key.codePointAt(i);
+        i += Character.charCount(cp);
+        if (cp == '\u0307' && previous == 'i')
+          continue;
+        previous = Character.toLowerCase(Character.toUpperCase(cp));
+        sb.appendCodePoint(previous);
+      }
+      return sb.toString();
+    };
+  }
+
+  /**
+   * Strip the accents: the key is decomposed (NFD), the combining marks are removed and the rest is composed back
+   *
+   * @return the normalizer
+   */
+  static KeyNormalizer stripAccents() {
+    return key -> {
+      String decomposed = Normalizer.normalize(key, Normalizer.Form.NFD);
+      StringBuilder sb = new StringBuilder(decomposed.length());
+      decomposed.codePoints().filter(cp -> Character.getType(cp) != Character.NON_SPACING_MARK)
+              .forEach(sb::appendCodePoint);
+      return Normalizer.normalize(sb, Normalizer.Form.NFC);
+    };
+  }
+}
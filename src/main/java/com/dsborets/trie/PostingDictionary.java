@@ -0,0 +1,311 @@
+package com.dsborets.trie;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dictionary encoding of the entry keys {@link EntryKey} to dense int ids, so the posting lists of the nodes keep
+ * the ids ({@link PostingList}) instead of references to the entry keys in hash sets.
+ * <p>
+ * The ids are allocated by chunks of 2^16 ids owned by one source (cache id), a chunk is a container of
+ * the posting lists, so a search of some of the sources skips the containers of the others without decoding them
+ * ({@link #getChunks(Collection)}).
+ * <p>
+ * Every id counts the postings referring to it, the id of an entry key without postings is released to be reused.
+ * The ids are acquired and released by the writers, while the entry keys are decoded without locking: every
+ * allocation of an id is stamped by a growing epoch, and a reader decodes an id only if it was allocated not later
+ * than the epoch taken before the reader read the posting list ({@link #get(int, long)}). A released id is removed
+ * from the posting lists before, so the reader which still sees it in the list taken later than the epoch
+ * never decodes it to the entry key it's reused for, however long the reader stays open.
+ */
+class PostingDictionary {
+  private static final int PAGE_BITS = 12;
+
+  private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+  private static final int CHUNK_BITS = 16;
+
+  // the ids are not negative
+  private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+  private final ConcurrentHashMap<EntryKey, Integer> ids = new ConcurrentHashMap<>();
+
+  private final ConcurrentHashMap<Object, Source> sources = new ConcurrentHashMap<>();
+
+  // the entry keys, the allocation stamps and the reference counts by id are kept in pages, so the pages are not
+  // copied to grow
+  @SuppressWarnings("unchecked")
+  private volatile AtomicReferenceArray<EntryKey>[] keys = new AtomicReferenceArray[0];
+
+  private volatile long[][] stamps = new long[0][];
+
+  private volatile int[][] refs = new int[0][];
+
+  // the stamp of the last allocation, written under the lock of the dictionary
+  private volatile long epoch;
+
+  // the owners of the chunks, guarded by this
+  private Source[] chunkSources = new Source[0];
+
+  /**
+   * Get amount of the entry keys
+   *
+   * @return amount of the entry keys
+   */
+  int size() {
+    return ids.size();
+  }
+
+  /**
+   * Get the upper bound of the allocated ids
+   *
+   * @return the id following the max allocated one
+   */
+  int getIdLimit() {
+    return keys.length << PAGE_BITS;
+  }
+
+  /**
+   * Estimate the heap size of the dictionary (64-bit JVM with compressed references)
+   *
+   * @return estimated amount of bytes
+   */
+  long estimateBytes() {
+    int size = ids.size();
+    int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, size + (size >>> 1))) << 1);
+    long pages = 0;
+    for (AtomicReferenceArray<EntryKey> page : keys) {
+      if (page != null) {
+        pages++;
+      }
+    }
+    // a node and a boxed id per entry key, and the pages of the entry keys, of the stamps and of the reference counts
+    return 64 + 16 + 4L * capacity + 48L * size + pages * (16 + 3 * 16 + 16L * (PAGE_MASK + 1));
+  }
+
+  /**
+   * Get the epoch of the ids, a reader takes it before reading a posting list to decode the ids of the list
+   *
+   * @return the stamp of the last allocation of an id
+   */
+  long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Decode an id
+   *
+   * @param id - the id
+   * @return the entry key or null if the id is released
+   */
+  EntryKey get(int id) {
+    AtomicReferenceArray<EntryKey>[] pages = keys;
+    int page = id >>> PAGE_BITS;
+    return page < pages.length && pages[page] != null ? pages[page].get(id & PAGE_MASK) : null;
+  }
+
+  /**
+   * Decode an id read by a reader which took an epoch before (see {@link #getEpoch()})
+   *
+   * @param id    - the id
+   * @param epoch - the epoch taken by the reader
+   * @return the entry key or null if the id is released or reused for another entry key after the epoch
+   */
+  EntryKey get(int id, long epoch) {
+    EntryKey key = get(id);
+    // the stamp is written before the entry key is published
+    return key != null && stamps[id >>> PAGE_BITS][id & PAGE_MASK] <= epoch ? key : null;
+  }
+
+  /**
+   * Get the id of an entry key without acquiring it
+   *
+   * @param key - entry key
+   * @return the id or -1 if the entry key has no id
+   */
+  int idOf(EntryKey key) {
+    Integer id = ids.get(key);
+    return id != null ? id : -1;
+  }
+
+  /**
+   * Get the chunks of the ids of the sources, the chunks allocated meanwhile may be missed
+   *
+   * @param sourceIds - the sources (cache ids)
+   * @return the high bits of the ids of the sources
+   */
+  BitSet getChunks(Collection<?> sourceIds) {
+    BitSet chunks = new BitSet();
+    for (Object sourceId : sourceIds) {
+      Source source = sources.get(sourceId);
+      if (source != null) {
+        for (int chunk : source.chunks) {
+          chunks.set(chunk);
+        }
+      }
+    }
+    return chunks;
+  }
+
+  /**
+   * Get the id of an entry key (a new one if the entry key has no id) and add references to it
+   *
+   * @param key   - entry key
+   * @param count - amount of the references
+   * @return the id
+   */
+  int acquire(EntryKey key, int count) {
+    return ids.compute(key, (k, id) -> {
+      int value = id != null ? id : allocate(k);
+      refs[value >>> PAGE_BITS][value & PAGE_MASK] += count;
+      return value;
+    });
+  }
+
+  /**
+   * Add references to an id, the id left without references is released
+   *
+   * @param id    - the id
+   * @param count - amount of the references
+   */
+  void retain(int id, int count) {
+    adjust(id, count);
+  }
+
+  /**
+   * Remove references to an id, the id left without references is released
+   *
+   * @param id    - the id
+   * @param count - amount of the references
+   */
+  void release(int id, int count) {
+    adjust(id, -count);
+  }
+
+  private void adjust(int id, int delta) {
+    EntryKey key = get(id);
+    if (key == null)
+      return;
+
+    ids.computeIfPresent(key, (k, value) -> {
+      if (value != id)
+        return value;
+
+      int[] page = refs[id >>> PAGE_BITS];
+      page[id & PAGE_MASK] += delta;
+      if (page[id & PAGE_MASK] > 0)
+        return value;
+
+      free(id);
+      return null;
+    });
+  }
+
+  private synchronized int allocate(EntryKey key) {
+    Source source = sources.computeIfAbsent(key.getCacheId(), sourceId -> new Source());
+    int id;
+    if (source.releasedSize > 0) {
+      id = source.pollReleased();
+    } else {
+      if (source.nextId == source.chunkEnd) {
+        addChunk(source);
+      }
+      id = source.nextId++;
+      if (id >>> PAGE_BITS >= refs.length || refs[id >>> PAGE_BITS] == null) {
+        addPage(id >>> PAGE_BITS);
+      }
+    }
+    long stamp = epoch + 1;
+    stamps[id >>> PAGE_BITS][id & PAGE_MASK] = stamp;
+    refs[id >>> PAGE_BITS][id & PAGE_MASK] = 0;
+    epoch = stamp;
+    keys[id >>> PAGE_BITS].set(id & PAGE_MASK, key);
+    return id;
+  }
+
+  private synchronized void free(int id) {
+    keys[id >>> PAGE_BITS].set(id & PAGE_MASK, null);
+    chunkSources[id >>> CHUNK_BITS].addReleased(id);
+  }
+
+  private void addChunk(Source source) {
+    int chunk = chunkSources.length;
+    if (chunk == MAX_CHUNKS)
+      throw new RuntimeException("Unable to allocate an id, the ids of the entry keys are exhausted");
+
+    Source[] copy = new Source[chunk + 1];
+    System.arraycopy(chunkSources, 0, copy, 0, chunk);
+    copy[chunk] = source;
+    chunkSources = copy;
+
+    int[] chunks = new int[source.chunks.length + 1];
+    System.arraycopy(source.chunks, 0, chunks, 0, source.chunks.length);
+    chunks[source.chunks.length] = chunk;
+    source.chunks = chunks;
+    source.nextId = chunk << CHUNK_BITS;
+    source.chunkEnd = (chunk + 1) << CHUNK_BITS;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void addPage(int page) {
+    // the ids of a chunk are allocated in order, so the pages are added when they're reached
+    int length = Math.max(keys.length, page + 1);
+    AtomicReferenceArray<EntryKey>[] keyPages = new AtomicReferenceArray[length];
+    System.arraycopy(keys, 0, keyPages, 0, keys.length);
+    keyPages[page] = new AtomicReferenceArray<>(PAGE_MASK + 1);
+
+    long[][] stampPages = new long[length][];
+    System.arraycopy(stamps, 0, stampPages, 0, stamps.length);
+    stampPages[page] = new long[PAGE_MASK + 1];
+
+    int[][] refPages = new int[length][];
+    System.arraycopy(refs, 0, refPages, 0, refs.length);
+    refPages[page] = new int[PAGE_MASK + 1];
+
+    // the stamps and the reference counts are published first, they're read after the entry keys are decoded
+    stamps = stampPages;
+    refs = refPages;
+    keys = keyPages;
+  }
+
+  /**
+   * The chunks and the released ids of a source, changed under the lock of the dictionary
+   */
+  private static final class Source {
+    // the chunks in order of allocation, replaced on every change
+    private volatile int[] chunks = new int[0];
+
+    private int nextId;
+
+    private int chunkEnd;
+
+    // the released ids in order of release (a ring)
+    private int[] released = new int[16];
+
+    private int releasedHead;
+
+    private int releasedSize;
+
+    void addReleased(int id) {
+      if (releasedSize == released.length) {
+        int[] copy = new int[released.length * 2];
+        for (int i = 0; i < releasedSize; i++) {
+          copy[i] = released[(releasedHead + i) % released.length];
+        }
+        released = copy;
+        releasedHead = 0;
+      }
+      released[(releasedHead + releasedSize) % released.length] = id;
+      releasedSize++;
+    }
+
+    int pollReleased() {
+      int id = released[releasedHead];
+      releasedHead = (releasedHead + 1) % released.length;
+      releasedSize--;
+      return id;
+    }
+  }
+}
@@ -0,0 +1,545 @@
+package com.dsborets.trie;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Posting list of a trie node: the ids of the entry keys ({@link PostingDictionary}) split by the high 16 bits to
+ * containers like in a roaring bitmap. A container of a few ids keeps the low bits in a sorted char array, and a
+ * dense container is a bitmap of 2^16 bits, so a posting takes 2 bytes at most instead of a hash table node.
+ * A container is converted to the other kind when it grows over or shrinks below the thresholds.
+ * <p>
+ * The list is changed by ids by a writer holding the write lock of the subtree, the writer keeps the reference
+ * counts of the ids. Readers don't lock: a sorted array is replaced on every change (copy-on-write), while a bitmap
+ * is changed in place. The list is a read-only set view of the decoded entry keys.
+ */
+class PostingList extends AbstractSet<EntryKey> {
+  // an array container growing over the max size becomes a bitmap, a bitmap shrinking below the min size an array.
+  // A bitmap takes 8 KB, as much as an array of 4096 ids (the break-even of roaring), and the gap between the sizes
+  // keeps a container changed around the threshold from being converted back and forth
+  private static final int ARRAY_MAX_SIZE = 4096;
+
+  private static final int BITMAP_MIN_SIZE = 3072;
+
+  private static final Container[] EMPTY = new Container[0];
+
+  private final PostingDictionary dictionary;
+
+  // sorted by the high bits of the ids, replaced on every change
+  private volatile Container[] containers = EMPTY;
+
+  PostingList(PostingDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Create a list of ids at once, the caller adds the references to the ids
+   *
+   * @param dictionary - the dictionary of the ids
+   * @param ids        - the ids (sorted in place, duplicates are skipped)
+   * @param length     - amount of the ids in the array
+   * @return the list
+   */
+  static PostingList of(PostingDictionary dictionary, int[] ids, int length) {
+    Arrays.sort(ids, 0, length);
+    PostingList list = new PostingList(dictionary);
+    Container[] containers = new Container[length];
+    int size = 0;
+    char[] lows = new char[length];
+    for (int from = 0; from < length; ) {
+      char high = (char) (ids[from] >>> 16);
+      int count = 0;
+      int to = from;
+      for (; to < length && ids[to] >>> 16 == high; to++) {
+        if (to == from || ids[to] != ids[to - 1]) {
+          lows[count++] = (char) ids[to];
+        }
+      }
+      Container container = new ArrayContainer(high, Arrays.copyOf(lows, count));
+      containers[size++] = count > ARRAY_MAX_SIZE ? ((ArrayContainer) container).toBitmap() : container;
+      from = to;
+    }
+    list.containers = Arrays.copyOf(containers, size);
+    return list;
+  }
+
+  /**
+   * Copy the list, the references to the ids of the copy are added
+   *
+   * @return the copy
+   */
+  PostingList copy() {
+    PostingList list = new PostingList(dictionary);
+    Container[] copy = containers.clone();
+    for (int i = 0; i < copy.length; i++) {
+      copy[i] = copy[i].copy();
+    }
+    list.containers = copy;
+    list.forEachId(id -> dictionary.retain(id, 1));
+    return list;
+  }
+
+  /**
+   * Remove the references to the ids of a list which is not used anymore, the list itself is not changed
+   * (a reader may still iterate it)
+   */
+  void releaseAll() {
+    forEachId(id -> dictionary.release(id, 1));
+  }
+
+  /**
+   * Add an id (the caller must hold the write lock of the subtree)
+   *
+   * @param id - the id
+   * @return true if the id is added, false if it's in the list already
+   */
+  boolean add(int id) {
+    char high = (char) (id >>> 16);
+    Container[] current = containers;
+    int idx = indexOf(current, high);
+    if (idx < 0) {
+      idx = -(idx + 1);
+      Container[] copy = new Container[current.length + 1];
+      System.arraycopy(current, 0, copy, 0, idx);
+      copy[idx] = new ArrayContainer(high, new char[]{(char) id});
+      System.arraycopy(current, idx, copy, idx + 1, current.length - idx);
+      containers = copy;
+      return true;
+    }
+
+    Container container = current[idx];
+    if (container.contains((char) id))
+      return false;
+
+    replace(current, idx, container.add((char) id));
+    return true;
+  }
+
+  /**
+   * Remove an id (the caller must hold the write lock of the subtree)
+   *
+   * @param id - the id
+   * @return true if the id is removed, false if it's not in the list
+   */
+  boolean remove(int id) {
+    Container[] current = containers;
+    int idx = indexOf(current, (char) (id >>> 16));
+    if (idx < 0 || !current[idx].contains((char) id))
+      return false;
+
+    Container container = current[idx].remove((char) id);
+    if (container != null) {
+      replace(current, idx, container);
+    } else {
+      Container[] copy = new Container[current.length - 1];
+      System.arraycopy(current, 0, copy, 0, idx);
+      System.arraycopy(current, idx + 1, copy, idx, current.length - idx - 1);
+      containers = copy;
+    }
+    return true;
+  }
+
+  private void replace(Container[] current, int idx, Container container) {
+    if (current[idx] == container)
+      return;
+
+    Container[] copy = current.clone();
+    copy[idx] = container;
+    containers = copy;
+  }
+
+  /**
+   * Check if the list contains an id
+   *
+   * @param id - the id
+   * @return true if the id is in the list
+   */
+  boolean containsId(int id) {
+    Container[] current = containers;
+    int idx = indexOf(current, (char) (id >>> 16));
+    return idx >= 0 && current[idx].contains((char) id);
+  }
+
+  /**
+   * Pass the ids in ascending order to a consumer
+   *
+   * @param consumer - consumer of the ids
+   */
+  void forEachId(IntConsumer consumer) {
+    for (Container container : containers) {
+      container.forEach(consumer);
+    }
+  }
+
+  /**
+   * Pass the entry keys of the ids of some chunks to a consumer, the containers of the other chunks are skipped
+   * without decoding their ids
+   *
+   * @param chunks   - the high bits of the ids (see {@link PostingDictionary#getChunks})
+   * @param consumer - consumer of the entry keys
+   */
+  void forEach(BitSet chunks, Consumer<EntryKey> consumer) {
+    // the epoch is taken before the containers are read
+    long epoch = dictionary.getEpoch();
+    for (Container container : containers) {
+      if (chunks.get(container.high)) {
+        container.forEach(id -> {
+          EntryKey key = dictionary.get(id, epoch);
+          if (key != null) {
+            consumer.accept(key);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Get amount of the ids of some chunks
+   *
+   * @param chunks - the high bits of the ids (see {@link PostingDictionary#getChunks})
+   * @return amount of the ids
+   */
+  int size(BitSet chunks) {
+    int size = 0;
+    for (Container container : containers) {
+      if (chunks.get(container.high)) {
+        size += container.cardinality();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Estimate the heap size of the list (64-bit JVM with compressed references)
+   *
+   * @return estimated amount of bytes
+   */
+  long estimateBytes() {
+    Container[] current = containers;
+    long bytes = 24 + align(16 + 4L * current.length);
+    for (Container container : current) {
+      bytes += container.estimateBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Container container : containers) {
+      size += container.cardinality();
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return containers.length == 0;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof EntryKey))
+      return false;
+
+    int id = dictionary.idOf((EntryKey) o);
+    return id >= 0 && containsId(id);
+  }
+
+  @Override
+  public Iterator<EntryKey> iterator() {
+    // the epoch is taken before the containers are read
+    long epoch = dictionary.getEpoch();
+    return new PostingIterator(containers, epoch);
+  }
+
+  private static int indexOf(Container[] containers, char high) {
+    int low = 0;
+    int highIdx = containers.length - 1;
+    while (low <= highIdx) {
+      int mid = (low + highIdx) >>> 1;
+      char midHigh = containers[mid].high;
+      if (midHigh < high)
+        low = mid + 1;
+      else if (midHigh > high)
+        highIdx = mid - 1;
+      else
+        return mid;
+    }
+    return -(low + 1);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /**
+   * Iterator decoding the ids of the containers taken at its creation, the ids released meanwhile are skipped
+   * as well as the ids reused after the epoch taken before the containers (see {@link PostingDictionary})
+   */
+  private class PostingIterator implements Iterator<EntryKey> {
+    private final Container[] containers;
+    private final long epoch;
+    private int idx;
+    private int low;
+    private EntryKey next;
+
+    PostingIterator(Container[] containers, long epoch) {
+      this.containers = containers;
+      this.epoch = epoch;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && idx < containers.length) {
+        Container container = containers[idx];
+        int found = container.next(low);
+        if (found < 0) {
+          idx++;
+          low = 0;
+        } else {
+          low = found + 1;
+          next = dictionary.get(container.high << 16 | found, epoch);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public EntryKey next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+
+      EntryKey value = next;
+      next = null;
+      return value;
+    }
+  }
+
+  /**
+   * Ids sharing the high 16 bits
+   */
+  private abstract static class Container {
+    final char high;
+
+    Container(char high) {
+      this.high = high;
+    }
+
+    abstract int cardinality();
+
+    abstract boolean contains(char low);
+
+    /**
+     * Add the low bits of an id which is not in the container
+     *
+     * @return the container with the id (this one if it's changed in place)
+     */
+    abstract Container add(char low);
+
+    /**
+     * Remove the low bits of an id which is in the container
+     *
+     * @return the container without the id (this one if it's changed in place) or null if it's empty
+     */
+    abstract Container remove(char low);
+
+    /**
+     * Find the next low bits of an id
+     *
+     * @return the least low bits not less than from or -1
+     */
+    abstract int next(int from);
+
+    abstract void forEach(IntConsumer consumer);
+
+    abstract Container copy();
+
+    abstract long estimateBytes();
+  }
+
+  /**
+   * Sorted array of the low bits, replaced on every change
+   */
+  private static final class ArrayContainer extends Container {
+    private final char[] lows;
+
+    ArrayContainer(char high, char[] lows) {
+      super(high);
+      this.lows = lows;
+    }
+
+    @Override
+    int cardinality() {
+      return lows.length;
+    }
+
+    @Override
+    boolean contains(char low) {
+      return Arrays.binarySearch(lows, low) >= 0;
+    }
+
+    @Override
+    Container add(char low) {
+      if (lows.length >= ARRAY_MAX_SIZE)
+        return toBitmap().add(low);
+
+      int idx = -(Arrays.binarySearch(lows, low) + 1);
+      char[] copy = new char[lows.length + 1];
+      System.arraycopy(lows, 0, copy, 0, idx);
+      copy[idx] = low;
+      System.arraycopy(lows, idx, copy, idx + 1, lows.length - idx);
+      return new ArrayContainer(high, copy);
+    }
+
+    @Override
+    Container remove(char low) {
+      if (lows.length == 1)
+        return null;
+
+      int idx = Arrays.binarySearch(lows, low);
+      char[] copy = new char[lows.length - 1];
+      System.arraycopy(lows, 0, copy, 0, idx);
+      System.arraycopy(lows, idx + 1, copy, idx, lows.length - idx - 1);
+      return new ArrayContainer(high, copy);
+    }
+
+    @Override
+    int next(int from) {
+      if (from > Character.MAX_VALUE)
+        return -1;
+
+      int idx = Arrays.binarySearch(lows, (char) from);
+      if (idx < 0) {
+        idx = -(idx + 1);
+      }
+      return idx < lows.length ? lows[idx] : -1;
+    }
+
+    @Override
+    void forEach(IntConsumer consumer) {
+      int base = high << 16;
+      for (char low : lows) {
+        consumer.accept(base | low);
+      }
+    }
+
+    @Override
+    Container copy() {
+      // the array is never changed
+      return this;
+    }
+
+    @Override
+    long estimateBytes() {
+      return 24 + align(16 + 2L * lows.length);
+    }
+
+    BitmapContainer toBitmap() {
+      BitmapContainer bitmap = new BitmapContainer(high);
+      for (char low : lows) {
+        bitmap.add(low);
+      }
+      return bitmap;
+    }
+  }
+
+  /**
+   * Bitmap of the low bits, changed in place
+   */
+  private static final class BitmapContainer extends Container {
+    private final AtomicLongArray words = new AtomicLongArray(1 << 10);
+    private volatile int cardinality;
+
+    BitmapContainer(char high) {
+      super(high);
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean contains(char low) {
+      return (words.get(low >>> 6) & (1L << low)) != 0;
+    }
+
+    @Override
+    Container add(char low) {
+      words.set(low >>> 6, words.get(low >>> 6) | (1L << low));
+      cardinality++;
+      return this;
+    }
+
+    @Override
+    Container remove(char low) {
+      if (cardinality <= BITMAP_MIN_SIZE)
+        return toArray(low);
+
+      words.set(low >>> 6, words.get(low >>> 6) & ~(1L << low));
+      cardinality--;
+      return this;
+    }
+
+    @Override
+    int next(int from) {
+      for (int i = from >>> 6; i < words.length(); i++) {
+        long word = words.get(i);
+        if (i == from >>> 6) {
+          word &= -1L << from;
+        }
+        if (word != 0)
+          return i << 6 | Long.numberOfTrailingZeros(word);
+      }
+      return -1;
+    }
+
+    @Override
+    void forEach(IntConsumer consumer) {
+      int base = high << 16;
+      for (int i = 0; i < words.length(); i++) {
+        long word = words.get(i);
+        while (word != 0) {
+          consumer.accept(base | i << 6 | Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+    }
+
+    @Override
+    Container copy() {
+      BitmapContainer copy = new BitmapContainer(high);
+      for (int i = 0; i < words.length(); i++) {
+        copy.words.set(i, words.get(i));
+      }
+      copy.cardinality = cardinality;
+      return copy;
+    }
+
+    @Override
+    long estimateBytes() {
+      return 24 + 16 + align(16 + 8L * words.length());
+    }
+
+    /**
+     * Convert to an array container without the low bits of an id, the bitmap is not changed
+     */
+    private ArrayContainer toArray(char removed) {
+      char[] lows = new char[cardinality - 1];
+      int[] size = new int[1];
+      forEach(id -> {
+        if ((char) id != removed) {
+          lows[size[0]++] = (char) id;
+        }
+      });
+      return new ArrayContainer(high, lows);
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.dsborets.trie;
+
+/**
+ * The way the values of multiple search keys (terms) are combined
+ */
+public enum QueryOperator {
+  /**
+   * The values related to every term
+   */
+  AND,
+  /**
+   * The values related to any term
+   */
+  OR
+}
@@ -0,0 +1,24 @@
+package com.dsborets.trie;
+
+/**
+ * Path compressed trie node: a chain of single child nodes collapsed into one node labeled by the whole
+ * char sequence (the first char and the tail)
+ */
+class RadixTrieNode<V> extends TrieNode<V> {
+  private final char[] tail;
+
+  RadixTrieNode(char ch, char[] tail) {
+    super(ch);
+    this.tail = tail;
+  }
+
+  @Override
+  char[] getTail() {
+    return tail;
+  }
+
+  @Override
+  int getLabelLength() {
+    return tail.length + 1;
+  }
+}
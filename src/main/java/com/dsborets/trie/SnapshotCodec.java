@@ -0,0 +1,58 @@
+package com.dsborets.trie;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary codec of the cache ids and the cache keys kept in a trie snapshot (see {@link Trie#writeSnapshot})
+ *
+ * @param <T> type of the cache ids or the cache keys
+ */
+public interface SnapshotCodec<T> {
+
+  void write(DataOutput out, T value) throws IOException;
+
+  T read(SnapshotInput in) throws IOException;
+
+  static SnapshotCodec<Integer> integers() {
+    return new SnapshotCodec<Integer>() {
+      @Override
+      public void write(DataOutput out, Integer value) throws IOException {
+        out.writeInt(value);
+      }
+
+      @Override
+      public Integer read(SnapshotInput in) throws IOException {
+        return in.readInt();
+      }
+    };
+  }
+
+  static SnapshotCodec<Long> longs() {
+    return new SnapshotCodec<Long>() {
+      @Override
+      public void write(DataOutput out, Long value) throws IOException {
+        out.writeLong(value);
+      }
+
+      @Override
+      public Long read(SnapshotInput in) throws IOException {
+        return in.readLong();
+      }
+    };
+  }
+
+  static SnapshotCodec<String> strings() {
+    return new SnapshotCodec<String>() {
+      @Override
+      public void write(DataOutput out, String value) throws IOException {
+        out.writeUTF(value);
+      }
+
+      @Override
+      public String read(SnapshotInput in) throws IOException {
+        return in.readUTF();
+      }
+    };
+  }
+}
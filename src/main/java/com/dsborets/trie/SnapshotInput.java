@@ -0,0 +1,34 @@
+package com.dsborets.trie;
+
+import java.io.IOException;
+
+/**
+ * Reader of the values written to a trie snapshot by {@link java.io.DataOutput}, the snapshot is read from
+ * a memory mapped file (see {@link SnapshotCodec})
+ */
+public interface SnapshotInput {
+
+  boolean readBoolean();
+
+  byte readByte();
+
+  void readFully(byte[] bytes);
+
+  short readShort();
+
+  char readChar();
+
+  int readInt();
+
+  long readLong();
+
+  double readDouble();
+
+  /**
+   * Read a string written by {@link java.io.DataOutput#writeUTF}
+   *
+   * @return the string
+   * @throws IOException if the bytes are not a valid modified UTF-8
+   */
+  String readUTF() throws IOException;
+}
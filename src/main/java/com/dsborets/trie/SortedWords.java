@@ -0,0 +1,53 @@
+package com.dsborets.trie;
+
+import java.util.Collection;
+
+/**
+ * A set of words kept sorted, so a range of a key is looked up by a binary search over its chars without
+ * a substring
+ */
+class SortedWords {
+  private final String[] words;
+
+  SortedWords(Collection<String> words) {
+    this.words = words.stream().distinct().sorted().toArray(String[]::new);
+  }
+
+  /**
+   * Check if a range of a key is one of the words
+   *
+   * @param key   - the key
+   * @param start - offset of the range in the key
+   * @param end   - end of the range in the key (exclusive)
+   * @return true if the range is one of the words
+   */
+  boolean contains(String key, int start, int end) {
+    int low = 0;
+    int high = words.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compare(words[mid], key, start, end);
+      if (cmp < 0)
+        low = mid + 1;
+      else if (cmp > 0)
+        high = mid - 1;
+      else
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Compare a word with a range of a key the way {@link String#compareTo(String)} does
+   */
+  private static int compare(String word, String key, int start, int end) {
+    int length = Math.min(word.length(), end - start);
+    for (int i = 0; i < length; i++) {
+      char c1 = word.charAt(i);
+      char c2 = key.charAt(start + i);
+      if (c1 != c2)
+        return c1 - c2;
+    }
+    return word.length() - (end - start);
+  }
+}
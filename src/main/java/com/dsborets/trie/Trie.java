@@ -1,6 +1,9 @@
 package com.dsborets.trie;
 
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.CacheWriter;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
@@ -8,18 +11,43 @@ import com.github.benmanes.caffeine.cache.RemovalCause;
 
 import org.apache.commons.lang.StringUtils;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import javax.annotation.Nonnull;
 
 /**
- * Prefix tree (trie) implementation
+ * Prefix tree (trie) implementation.
+ * <p>
+ * The trie is thread-safe: searches never take a lock, while writers (cache writes, evictions and refreshes)
+ * are synchronized per subtree, striped by the first char of the searchable key. The writes may be applied to
+ * the trie off the write path by a write-behind indexer (see {@link TrieBuilder#writeBehind}).
  *
  * @author dsborets on 10/1/16
  */
@@ -27,20 +55,70 @@ public class Trie<I, K, V extends EntryValue> {
 
   public static final int DEFAULT_MIN_SEARCHABLE_KEY_LENGTH = 3;
 
-  private int minSearchableKeyLength = DEFAULT_MIN_SEARCHABLE_KEY_LENGTH;
+  public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
 
-  private HashMap<Character, TrieNode<K>> root;
+  private static final int GET_ALL_BATCH_SIZE = 256;
 
-  private HashMap<I, LoadingCache<K, V>> cacheList;
+  private TrieIndex<K> index;
 
-  private AtomicInteger size = new AtomicInteger(0);
+  // the suffixes of the keys of the caches with substring search
+  private final TrieIndex<K> suffixIndex;
 
-  private int nodeSize;
+  private ConcurrentHashMap<I, TrieCache<K, V>> cacheList;
+
+  // null if the stats are not recorded
+  private final TrieStatsCounter statsCounter;
+
+  // set while a search takes the values from the caches, so only the loads of the searches are counted
+  private final ThreadLocal<Boolean> searching = new ThreadLocal<>();
+
+  // entry keys by search key, null if the search results are not cached
+  private final Cache<String, Set<EntryKey>> prefixCache;
+
+  private final int maxCachedPrefixLength;
+
+  // null if the keys are not normalized
+  private final KeyNormalizer keyNormalizer;
+
+  // null if the trie is written on the write path
+  private final WriteBehindIndexer indexer;
 
   public Trie(int minSearchableKeyLength) {
-    this.minSearchableKeyLength = minSearchableKeyLength;
-    root = new HashMap<>();
-    cacheList = new HashMap<>();
+    this(newBuilder().minSearchableKeyLength(minSearchableKeyLength));
+  }
+
+  /**
+   * Create a trie
+   *
+   * @param minSearchableKeyLength - min length of a key to be searchable
+   * @param concurrencyLevel       - estimated number of concurrently writing threads (amount of write lock stripes)
+   */
+  public Trie(int minSearchableKeyLength, int concurrencyLevel) {
+    this(newBuilder().minSearchableKeyLength(minSearchableKeyLength).concurrencyLevel(concurrencyLevel));
+  }
+
+  Trie(TrieBuilder builder) {
+    index = new TrieIndex<>(builder.minSearchableKeyLength, builder.concurrencyLevel, builder.pathCompression,
+            builder.terminalPostings);
+    // every suffix is kept once by the node it ends at, so the postings are linear in the key length
+    suffixIndex = new TrieIndex<>(builder.minSearchableKeyLength, builder.concurrencyLevel, true, true);
+    cacheList = new ConcurrentHashMap<>();
+    statsCounter = builder.recordStats ? new TrieStatsCounter() : null;
+    prefixCache = builder.prefixCacheSize > 0
+            ? Caffeine.newBuilder().maximumSize(builder.prefixCacheSize).build() : null;
+    maxCachedPrefixLength = builder.maxCachedPrefixLength;
+    keyNormalizer = builder.keyNormalizer;
+    indexer = builder.writeBehindQueueCapacity > 0 ? new WriteBehindIndexer(builder.writeBehindQueueCapacity,
+            builder.maxStalenessNanos, this::indexToken, this::unindexToken) : null;
+  }
+
+  /**
+   * Create a builder to configure a trie
+   *
+   * @return the builder
+   */
+  public static TrieBuilder newBuilder() {
+    return new TrieBuilder();
   }
 
   public void addCaffeine(I cacheId, Caffeine<K, V> caffeine, Function<K, V> buildFunction) {
@@ -56,34 +134,206 @@ public class Trie<I, K, V extends EntryValue> {
    * @param delimiter     - delimiter char if case of free search key
    */
   public void addCaffeine(I cacheId, Caffeine<K, V> caffeine, Function<K, V> buildFunction, String delimiter) {
-    Cache currentCache = cacheList.get(cacheId);
+    addCaffeine(cacheId, caffeine, buildFunction, null, delimiter);
+  }
+
+  /**
+   * Add a cache to the list of caches with a bulk loading function.
+   * Values of one cache found by a search are taken from the cache at once, so all the expired ones are loaded
+   * by one call of the bulk function instead of a call per value
+   *
+   * @param cacheId           - cache id (must be unique)
+   * @param caffeine          - Caffeine object
+   * @param buildFunction     - the function to get an entry by id in case of the entry expiration in the cache (see Caffeine doc)
+   * @param bulkBuildFunction - the function to get entries by ids in case of the entries expiration in the cache
+   *                          (the ids without entries are omitted in the result), null to use buildFunction per id
+   * @param delimiter         - delimiter char if case of free search key
+   */
+  public void addCaffeine(I cacheId, Caffeine<K, V> caffeine, Function<K, V> buildFunction,
+                          Function<Set<K>, Map<K, V>> bulkBuildFunction, String delimiter) {
+    addCaffeine(cacheId, caffeine, buildFunction, bulkBuildFunction, delimiter, false);
+  }
+
+  /**
+   * Add a cache to the list of caches, the values of the cache may be searched by a part of the key
+   * ({@link #getSetContaining(CharSequence)}) if substring search is on. Every suffix of a key (of every word in
+   * case of free search key) is indexed as well, so a write of the cache takes time quadratic in the key length
+   *
+   * @param cacheId           - cache id (must be unique)
+   * @param caffeine          - Caffeine object
+   * @param buildFunction     - the function to get an entry by id in case of the entry expiration in the cache (see Caffeine doc)
+   * @param bulkBuildFunction - the function to get entries by ids in case of the entries expiration in the cache
+   *                          (the ids without entries are omitted in the result), null to use buildFunction per id
+   * @param delimiter         - delimiter char if case of free search key
+   * @param substringSearch   - whether the suffixes of the keys are indexed
+   */
+  public void addCaffeine(I cacheId, Caffeine<K, V> caffeine, Function<K, V> buildFunction,
+                          Function<Set<K>, Map<K, V>> bulkBuildFunction, String delimiter, boolean substringSearch) {
+    addCaffeineWithAnalyzer(cacheId, caffeine, buildFunction, bulkBuildFunction, analyzer(delimiter), substringSearch);
+  }
 
-    if (currentCache != null)
+  /**
+   * Add a cache to the list of caches, the searchable keys of the values are split to the indexed tokens by
+   * an analyzer (see {@link KeyAnalyzer}). The keys are normalized before the analysis if the key normalizer is set
+   *
+   * @param cacheId           - cache id (must be unique)
+   * @param caffeine          - Caffeine object
+   * @param buildFunction     - the function to get an entry by id in case of the entry expiration in the cache (see Caffeine doc)
+   * @param bulkBuildFunction - the function to get entries by ids in case of the entries expiration in the cache
+   *                          (the ids without entries are omitted in the result), null to use buildFunction per id
+   * @param analyzer          - analyzer of the keys, null to index the whole key
+   * @param substringSearch   - whether the suffixes of the keys (of the tokens) are indexed
+   */
+  public void addCaffeineWithAnalyzer(I cacheId, Caffeine<K, V> caffeine, Function<K, V> buildFunction,
+                                     Function<Set<K>, Map<K, V>> bulkBuildFunction, KeyAnalyzer analyzer,
+                                     boolean substringSearch) {
+    if (cacheList.containsKey(cacheId))
       throw new RuntimeException(String.format("The cache with provided id {%s} already exists", cacheId));
 
     LoadingCache<K, V> cache = caffeine.writer(new CacheWriter<K, V>() {
       @Override
 
       public void write(@Nonnull K key, @Nonnull V value) {
-        putToTrie(value.getKey(), new EntryKey<>(cacheId, key), delimiter);
+        // the trie is updated by the put itself, as it knows the previous value to reindex only the changed words
       }
 
       @Override
       public void delete(@Nonnull K key, V value, @Nonnull RemovalCause cause) {
-        removeFromTrie(value.getKey(), new EntryKey<>(cacheId, key), delimiter);
+        TrieCache<K, V> trieCache = cacheList.get(cacheId);
+        trieCache.removeRestored(key);
+        if (!trieCache.removeUnindexed(key)) {
+          removeFromTrie(value.getKey(), new EntryKey<>(cacheId, key), trieCache.getAnalyzer(), substringSearch);
+          trieCache.addEntryCount(-1);
+        }
+        if (cause.wasEvicted() && statsCounter != null) {
+          statsCounter.recordEviction();
+        }
+      }
+    }).build(bulkBuildFunction == null ? new CacheLoader<K, V>() {
+      @Override
+      public V load(@Nonnull K key) {
+        recordLoad();
+        return loaded(cacheId, key, buildFunction.apply(key));
+      }
+
+      @Override
+      public V reload(@Nonnull K key, @Nonnull V oldValue) {
+        return reloaded(cacheId, key, oldValue, buildFunction.apply(key));
+      }
+    } : new CacheLoader<K, V>() {
+      @Override
+      public V load(@Nonnull K key) {
+        recordLoad();
+        return loaded(cacheId, key, buildFunction.apply(key));
+      }
+
+      @Override
+      public V reload(@Nonnull K key, @Nonnull V oldValue) {
+        return reloaded(cacheId, key, oldValue, buildFunction.apply(key));
+      }
+
+      @Override
+      public Map<K, V> loadAll(@Nonnull Iterable<? extends K> keys) {
+        recordLoad();
+        Set<K> set = new HashSet<>();
+        keys.forEach(set::add);
+        Map<K, V> values = bulkBuildFunction.apply(set);
+        values.forEach((key, value) -> loaded(cacheId, key, value));
+        return values;
+      }
+    });
+
+    if (cacheList.putIfAbsent(cacheId, new TrieCache<>(cache, analyzer != null ? analyzer : KeyAnalyzer.keyword(), substringSearch)) != null)
+      throw new RuntimeException(String.format("The cache with provided id {%s} already exists", cacheId));
+  }
+
+  /**
+   * Add an asynchronous cache to the list of caches.
+   * The values of the cache are loaded by the async loader, so {@link #getSetAsync(String)} never blocks on
+   * loading them. Caffeine doesn't support cache writers of async caches, so the trie is updated by
+   * {@link #put(Object, Object, EntryValue)} and {@link #remove(Object, Object)}, and a removal listener is set to
+   * the Caffeine object to remove evicted entries from the trie
+   *
+   * @param cacheId   - cache id (must be unique)
+   * @param caffeine  - Caffeine object
+   * @param loader    - the async loader to get an entry by id in case of the entry expiration in the cache (see Caffeine doc)
+   * @param delimiter - delimiter char if case of free search key
+   */
+  public void addAsyncCaffeine(I cacheId, Caffeine<K, V> caffeine, AsyncCacheLoader<? super K, V> loader,
+                               String delimiter) {
+    addAsyncCaffeine(cacheId, caffeine, loader, delimiter, false);
+  }
+
+  /**
+   * Add an asynchronous cache to the list of caches, the values of the cache may be searched by a part of the key
+   * if substring search is on (see {@link #addCaffeine(Object, Caffeine, Function, Function, String, boolean)})
+   *
+   * @param cacheId         - cache id (must be unique)
+   * @param caffeine        - Caffeine object
+   * @param loader          - the async loader to get an entry by id in case of the entry expiration in the cache (see Caffeine doc)
+   * @param delimiter       - delimiter char if case of free search key
+   * @param substringSearch - whether the suffixes of the keys are indexed
+   */
+  public void addAsyncCaffeine(I cacheId, Caffeine<K, V> caffeine, AsyncCacheLoader<? super K, V> loader,
+                               String delimiter, boolean substringSearch) {
+    addAsyncCaffeineWithAnalyzer(cacheId, caffeine, loader, analyzer(delimiter), substringSearch);
+  }
+
+  /**
+   * Add an asynchronous cache to the list of caches, the searchable keys of the values are split to the indexed
+   * tokens by an analyzer
+   * (see {@link #addCaffeineWithAnalyzer(Object, Caffeine, Function, Function, KeyAnalyzer, boolean)})
+   *
+   * @param cacheId         - cache id (must be unique)
+   * @param caffeine        - Caffeine object
+   * @param loader          - the async loader to get an entry by id in case of the entry expiration in the cache (see Caffeine doc)
+   * @param analyzer        - analyzer of the keys, null to index the whole key
+   * @param substringSearch - whether the suffixes of the keys (of the tokens) are indexed
+   */
+  public void addAsyncCaffeineWithAnalyzer(I cacheId, Caffeine<K, V> caffeine, AsyncCacheLoader<? super K, V> loader,
+                                          KeyAnalyzer analyzer, boolean substringSearch) {
+    if (cacheList.containsKey(cacheId))
+      throw new RuntimeException(String.format("The cache with provided id {%s} already exists", cacheId));
+
+    AsyncLoadingCache<K, V> cache = caffeine.removalListener((K key, V value, RemovalCause cause) -> {
+      if (!cause.wasEvicted() || key == null || value == null)
+        return;
+      TrieCache<K, V> trieCache = cacheList.get(cacheId);
+      trieCache.removeRestored(key);
+      EntryKey<I, K> entryKey = new EntryKey<>(cacheId, key);
+      // the listener is called after the eviction, so the key may have been put again as a new entry already
+      trieCache.getCache().asMap().compute(key, (k, currentValue) -> {
+        if (currentValue == null) {
+          removeFromTrie(value.getKey(), entryKey, trieCache.getAnalyzer(), substringSearch);
+        } else {
+          // only the words of the evicted value which the new one doesn't have are taken off
+          reindex(value.getKey(), currentValue.getKey(), entryKey, trieCache);
+        }
+        trieCache.addEntryCount(-1);
+        return currentValue;
+      });
+      if (statsCounter != null) {
+        statsCounter.recordEviction();
       }
-    }).build(buildFunction::apply);
+    }).buildAsync(loader);
 
-    cacheList.put(cacheId, cache);
+    if (cacheList.putIfAbsent(cacheId, new TrieCache<>(cache, analyzer != null ? analyzer : KeyAnalyzer.keyword(), substringSearch)) != null)
+      throw new RuntimeException(String.format("The cache with provided id {%s} already exists", cacheId));
   }
 
   /**
-   * Get size of the trie
+   * Get amount of the entries of all the caches.
+   * A put of a new key adds an entry, while a put of a present key replaces it, and a removal or an eviction from
+   * a cache subtracts it
    *
    * @return size of the trie
    */
   public int getSize() {
-    return size.get();
+    long size = 0;
+    for (TrieCache<K, V> cache : cacheList.values()) {
+      size += cache.getEntryCount();
+    }
+    return (int) size;
   }
 
   /**
@@ -92,11 +342,33 @@ public class Trie<I, K, V extends EntryValue> {
    * @return trie nodes amount
    */
   public int getNodeSize() {
-    return nodeSize;
+    return index.getNodeSize();
+  }
+
+  /**
+   * Get the statistics of the trie. The amounts of the entries and the nodes are always available, the recorded
+   * counters are zero unless the trie is built with {@link TrieBuilder#recordStats()}.
+   * The sizes of the entry key sets and the heap size are taken by walking the heap nodes, so the call takes time
+   * linear in the amount of the nodes
+   *
+   * @return the statistics
+   */
+  public TrieStats<I> getStats() {
+    long[] postingSizes = new long[TrieStatsCounter.BUCKETS];
+    long bytes = index.collectStats(postingSizes);
+    if (statsCounter == null)
+      return new TrieStats<>(new long[TrieStatsCounter.BUCKETS], 0, 0, getEntryCounts(), index.getNodeSize(),
+              postingSizes, bytes);
+
+    return new TrieStats<>(statsCounter.getSearchLatencies(), statsCounter.getLoadCount(),
+            statsCounter.getEvictionCount(), getEntryCounts(), index.getNodeSize(), postingSizes, bytes);
   }
 
   /**
-   * Add an element to the trie and a cache
+   * Add an element to the trie and a cache.
+   * If the key is in the cache already, only the difference between the words of the previous and the new
+   * searchable keys is reindexed: the removed words are removed from the trie and the added ones are put, so a put
+   * of a value with the same searchable key doesn't touch the trie
    *
    * @param cacheId - cache id
    * @param key     - cache key
@@ -104,9 +376,106 @@ public class Trie<I, K, V extends EntryValue> {
    */
   public void put(I cacheId, K key, V value) {
     checkInputParameters(cacheId, key, value);
-    Cache<K, V> cache = getCacheById(cacheId);
-    cache.put(key, value);
-    size.incrementAndGet();
+    TrieCache<K, V> cache = getCacheById(cacheId);
+    loadRestored(cache, key);
+    EntryKey<I, K> entryKey = new EntryKey<>(cacheId, key);
+    cache.getCache().asMap().compute(key, (k, oldValue) -> {
+      if (oldValue == null || cache.removeUnindexed(k)) {
+        putToTrie(value.getKey(), entryKey, cache.getAnalyzer(), cache.isSubstringSearch());
+        cache.addEntryCount(1);
+      } else {
+        reindex(oldValue.getKey(), value.getKey(), entryKey, cache);
+      }
+      return value;
+    });
+  }
+
+  /**
+   * Add elements of one cache to the trie and the cache at once (see {@link #putAll(Map)})
+   *
+   * @param cacheId - cache id
+   * @param values  - values by cache key
+   */
+  public void putAll(I cacheId, Map<K, V> values) {
+    putAll(Collections.singletonMap(cacheId, values));
+  }
+
+  /**
+   * Add elements to the trie and their caches at once, the trie is built in the common pool
+   * (see {@link #putAll(Map, ForkJoinPool)})
+   *
+   * @param valuesByCacheId - values by cache key by cache id
+   */
+  public void putAll(Map<I, Map<K, V>> valuesByCacheId) {
+    putAll(valuesByCacheId, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Add elements to the trie and their caches at once.
+   * The searchable keys of all the elements are sorted and the nodes of an empty trie are built from them in one
+   * pass, instead of a lookup and copy-on-write of the children per key, then every cache is filled by one putAll.
+   * The keys are put one by one if the trie is not empty, the elements whose keys are in their caches already are
+   * put by {@link #put(Object, Object, EntryValue)}. Keys sorted in advance (e.g. a sorted dictionary) make
+   * the sorting linear.
+   * The method may be called along with the other writers: a key put by another writer while the trie is built
+   * keeps the value of that writer, as if it was put after this call
+   * The keys are sorted and the independent subtrees of different chars are built in parallel in the pool
+   *
+   * @param valuesByCacheId - values by cache key by cache id
+   * @param pool            - the pool to build the trie in
+   */
+  public void putAll(Map<I, Map<K, V>> valuesByCacheId, ForkJoinPool pool) {
+    // the queued writes go first, as the trie is built only if it's empty
+    flush();
+    List<Map.Entry<String, EntryKey>> entries = new ArrayList<>();
+    List<Map.Entry<String, EntryKey>> suffixEntries = new ArrayList<>();
+    Map<I, Map<K, V>> newValuesByCacheId = new HashMap<>();
+    Map<I, Map<K, V>> presentValuesByCacheId = new HashMap<>();
+    for (Map.Entry<I, Map<K, V>> cacheValues : valuesByCacheId.entrySet()) {
+      I cacheId = cacheValues.getKey();
+      TrieCache<K, V> cache = getCacheById(cacheId);
+      Map<K, V> present = cache.getCache().asMap();
+      Map<K, V> newValues = newValuesByCacheId.computeIfAbsent(cacheId, id -> new HashMap<>());
+      for (Map.Entry<K, V> entry : cacheValues.getValue().entrySet()) {
+        checkInputParameters(cacheId, entry.getKey(), entry.getValue());
+        if (cache.isRestored(entry.getKey()) || present.containsKey(entry.getKey())) {
+          presentValuesByCacheId.computeIfAbsent(cacheId, id -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+          continue;
+        }
+        newValues.put(entry.getKey(), entry.getValue());
+
+        EntryKey<I, K> entryKey = new EntryKey<>(cacheId, entry.getKey());
+        for (String word : words(entry.getValue().getKey(), cache.getAnalyzer())) {
+          entries.add(new AbstractMap.SimpleImmutableEntry<>(word, entryKey));
+          if (cache.isSubstringSearch()) {
+            forEachSuffix(word, 0, word.length(), (key, start, end) ->
+                    suffixEntries.add(new AbstractMap.SimpleImmutableEntry<>(key.substring(start), entryKey)));
+          }
+        }
+      }
+    }
+
+    index.putAll(entries, pool);
+    if (!suffixEntries.isEmpty()) {
+      suffixIndex.putAll(suffixEntries, pool);
+    }
+    if (prefixCache != null) {
+      prefixCache.invalidateAll();
+    }
+
+    newValuesByCacheId.forEach((cacheId, values) -> {
+      TrieCache<K, V> cache = getCacheById(cacheId);
+      values.forEach((key, value) -> cache.getCache().asMap().compute(key, (k, currentValue) -> {
+        if (currentValue == null || cache.removeUnindexed(k)) {
+          cache.addEntryCount(1);
+          return value;
+        }
+        // a put of the key meanwhile has indexed its value, which is newer, so the words of this one are taken off
+        reindex(value.getKey(), currentValue.getKey(), new EntryKey<>(cacheId, k), cache);
+        return currentValue;
+      }));
+    });
+    presentValuesByCacheId.forEach((cacheId, values) -> values.forEach((key, value) -> put(cacheId, key, value)));
   }
 
   /**
@@ -118,9 +487,18 @@ public class Trie<I, K, V extends EntryValue> {
   public void remove(I cacheId, K key) {
     checkCacheIdInputParameter(cacheId);
     checkKeyInputParameter(key);
-    Cache cache = getCacheById(cacheId);
-    cache.invalidate(key);
-    size.decrementAndGet();
+    TrieCache<K, V> cache = getCacheById(cacheId);
+    loadRestored(cache, key);
+    if (cache.getAsyncCache() != null) {
+      cache.getCache().asMap().computeIfPresent(key, (k, oldValue) -> {
+        removeFromTrie(oldValue.getKey(), new EntryKey<>(cacheId, key), cache.getAnalyzer(),
+                cache.isSubstringSearch());
+        cache.addEntryCount(-1);
+        return null;
+      });
+    } else {
+      cache.getCache().invalidate(key);
+    }
   }
 
   /**
@@ -129,182 +507,831 @@ public class Trie<I, K, V extends EntryValue> {
    * @param key - trie key
    * @return set of values related to the key
    */
-  public Set<V> getSet(String key) {
+  public Set<V> getSet(CharSequence key) {
 
-    if (StringUtils.isEmpty(key))
-      throw new RuntimeException("Key should not be empty");
+    checkSearchKeyInputParameter(key);
+    key = normalize(key);
+
+    long start = startSearch();
+    Set<V> values = getValues((Set) search(key));
+    recordSearch(start);
+    return values;
+  }
+
+  /**
+   * Search the set of values by a key given as a range of a char array (for example, a token of a parsed text),
+   * no string is created for the key
+   *
+   * @param chars  - chars of the trie key
+   * @param offset - offset of the key in the array
+   * @param length - key length
+   * @return set of values related to the key
+   */
+  public Set<V> getSet(char[] chars, int offset, int length) {
+    checkSearchKeyInputParameter(chars, offset, length);
+    if (keyNormalizer != null)
+      return getSet(new String(chars, offset, length));
+
+    long start = startSearch();
+    Set<V> values = getValues((Set) index.search(chars, offset, length));
+    recordSearch(start);
+    return values;
+  }
+
+  /**
+   * Search the set of values of some caches by key. The postings of the other caches are skipped while the trie
+   * is walked, before any value is taken from the caches, so a search of one cache costs in proportion to the
+   * entries of that cache. The search results cache is not used
+   *
+   * @param key      - trie key
+   * @param cacheIds - ids of the caches to search
+   * @return set of values of the caches related to the key
+   */
+  public Set<V> getSet(CharSequence key, Set<I> cacheIds) {
+    checkSearchKeyInputParameter(key);
+    checkCacheIdsInputParameter(cacheIds);
+    key = normalize(key);
+
+    long start = startSearch();
+    Set<V> values = getValues((Set) index.search(key, cacheIds));
+    recordSearch(start);
+    return values;
+  }
 
-    TrieNode<K> node = root.get(key.charAt(0));
-    if (node == null || node.getSequences() == null)
+  /**
+   * Get values from their caches by the entry keys found in the trie
+   *
+   * @param entryKeys - entry keys or null
+   * @return set of values or null if there are no entry keys
+   */
+  private Set<V> getValues(Set<EntryKey<I, K>> entryKeys) {
+    if (entryKeys == null)
       return null;
 
-    Set<EntryKey<I, K>> set = search(node, key, key.length(), 1);
+    Set<V> values = new HashSet<>();
+    getValues(entryKeys, values::add);
+    return values;
+  }
 
-    if (set != null) {
-      Set<V> values = new HashSet<>();
-      set.forEach(s ->
-              values.add(cacheList.get(s.getCacheId()).get(s.getKey()))
+  /**
+   * Search the set of values by multiple keys (for example, the words of a free search key).
+   * The entry keys of the terms are combined before any value is taken from the caches: in the AND case the
+   * smallest set of entry keys is intersected with the others, so only the values related to every term are taken
+   *
+   * @param operator - the way the values of the terms are combined
+   * @param keys     - trie keys (terms)
+   * @return set of values related to the keys
+   */
+  public Set<V> getSet(QueryOperator operator, CharSequence... keys) {
 
-      );
-      return values;
+    if (operator == null)
+      throw new RuntimeException("Operator should not be null");
+
+    if (keys == null || keys.length == 0)
+      throw new RuntimeException("Keys should not be empty");
+
+    for (CharSequence key : keys) {
+      checkSearchKeyInputParameter(key);
     }
 
-    return null;
+    long start = startSearch();
+    try {
+      return searchTerms(operator, normalize(keys));
+    } finally {
+      recordSearch(start);
+    }
   }
 
-  private void putToTrie(String key, EntryKey<I, K> value, String delimiter) {
-    if (StringUtils.isNotEmpty(delimiter)) {
-      Arrays.stream(key.split(delimiter)).forEach(k -> putToTrie(k, value));
+  private Set<V> searchTerms(QueryOperator operator, CharSequence[] keys) {
+    List<Set<EntryKey>> sets = new ArrayList<>(keys.length);
+    for (CharSequence key : keys) {
+      Set<EntryKey> set = search(key);
+      if (set == null || set.isEmpty()) {
+        if (operator == QueryOperator.AND)
+          return null;
+      } else {
+        sets.add(set);
+      }
+    }
+
+    if (sets.isEmpty())
+      return null;
+
+    Set<EntryKey> result;
+    if (operator == QueryOperator.AND) {
+      sets.sort(Comparator.comparingInt(Set::size));
+      result = new HashSet<>(sets.get(0));
+      for (int i = 1; i < sets.size() && !result.isEmpty(); i++) {
+        Set<EntryKey> set = sets.get(i);
+        result.removeIf(entryKey -> !set.contains(entryKey));
+      }
     } else {
-      putToTrie(key, value);
+      result = new HashSet<>();
+      sets.forEach(result::addAll);
     }
+
+    return result.isEmpty() ? null : getValues((Set) result);
   }
 
   /**
-   * Put a searchable key with related value to the trie by splitting them into chars
+   * Search the set of values by key asynchronously.
+   * The values of asynchronous caches are taken by their async loaders, the values of synchronous caches are
+   * taken on the common fork-join pool
    *
-   * @param key   searchable key for the prefix tree
-   * @param value value {@link EntryKey}
+   * @param key - trie key
+   * @return future of set of values related to the key (the future of null if there are no values)
    */
-  private void putToTrie(String key, EntryKey<I, K> value) {
-    TrieNode<K> node = root.get(key.charAt(0));
-    if (node == null) {
-      node = new TrieNode<>();
-      root.put(key.charAt(0), node);
-      nodeSize++;
+  public CompletableFuture<Set<V>> getSetAsync(CharSequence key) {
+    return getSetAsync(key, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Search the set of values by key asynchronously.
+   * The values of every cache are taken concurrently: the values of asynchronous caches are taken by their async
+   * loaders, the values of synchronous caches are taken on the executor, so the calling thread never blocks on
+   * loading values
+   *
+   * @param key      - trie key
+   * @param executor - the executor to take the values of synchronous caches on
+   * @return future of set of values related to the key (the future of null if there are no values)
+   */
+  public CompletableFuture<Set<V>> getSetAsync(CharSequence key, Executor executor) {
+
+    checkSearchKeyInputParameter(key);
+    key = normalize(key);
+
+    Set<EntryKey<I, K>> set = (Set) search(key);
+
+    if (set == null)
+      return CompletableFuture.completedFuture(null);
+
+    List<CompletableFuture<Map<K, V>>> futures = new ArrayList<>();
+    groupByCacheId(set).forEach((cacheId, keys) -> {
+      TrieCache<K, V> cache = cacheList.get(cacheId);
+      if (cache.getAsyncCache() != null) {
+        futures.add(cache.getAsyncCache().getAll(keys));
+      } else {
+        futures.add(CompletableFuture.supplyAsync(() -> getForSearch(() -> cache.getCache().getAll(keys)),
+                executor));
+      }
+    });
+
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(v -> {
+      Set<V> values = new HashSet<>();
+      futures.forEach(future -> values.addAll(future.join().values()));
+      return values;
+    });
+  }
+
+  /**
+   * Search the set of values by key, but not more than the limit.
+   * The search stops as soon as the limit is reached, so only the returned values are taken from the caches
+   *
+   * @param key   - trie key
+   * @param limit - max amount of values
+   * @return set of values related to the key
+   */
+  public Set<V> getSet(CharSequence key, int limit) {
+
+    checkSearchKeyInputParameter(key);
+    key = normalize(key);
+
+    checkLimitInputParameter(limit);
+
+    long start = startSearch();
+    List<EntryKey<I, K>> entryKeys = new ArrayList<>();
+    index.forEach(key, s -> {
+      entryKeys.add((EntryKey<I, K>) s);
+      return entryKeys.size() < limit;
+    });
+
+    Set<V> values = null;
+    if (!entryKeys.isEmpty()) {
+      values = new HashSet<>();
+      getValues(entryKeys, values::add);
     }
+    recordSearch(start);
+    return values;
+  }
 
-    add(node, key, key.length(), 1, value);
+  /**
+   * Search the values with the highest score by key.
+   * All the values related to the key are scored, but only the top ones are kept while searching
+   *
+   * @param key   - trie key
+   * @param limit - max amount of values
+   * @param score - the function to get a score of a value (for example, popularity)
+   * @return list of values related to the key ordered by score descending
+   */
+  public List<V> getTop(CharSequence key, int limit, ToDoubleFunction<? super V> score) {
+
+    checkSearchKeyInputParameter(key);
+    key = normalize(key);
+
+    checkLimitInputParameter(limit);
+
+    long start = startSearch();
+    try {
+      return searchTop(key, limit, score);
+    } finally {
+      recordSearch(start);
+    }
   }
 
-  private void removeFromTrie(String key, EntryKey<I, K> value, String delimiter) {
-    if (StringUtils.isNotEmpty(delimiter)) {
-      Arrays.stream(key.split(delimiter)).forEach(k -> removeFromTrie(k, value));
-    } else {
-      removeFromTrie(key, value);
+  private List<V> searchTop(CharSequence key, int limit, ToDoubleFunction<? super V> score) {
+    Comparator<V> comparator = Comparator.comparingDouble(score);
+    PriorityQueue<V> top = new PriorityQueue<>(Math.min(limit, 64), comparator);
+    Consumer<V> consumer = value -> {
+      if (top.size() < limit) {
+        top.add(value);
+      } else if (comparator.compare(value, top.peek()) > 0) {
+        top.poll();
+        top.add(value);
+      }
+    };
+
+    // the values are taken from the caches in batches to keep only the top ones while searching
+    List<EntryKey<I, K>> batch = new ArrayList<>();
+    index.forEach(key, s -> {
+      batch.add((EntryKey<I, K>) s);
+      if (batch.size() == GET_ALL_BATCH_SIZE) {
+        getValues(batch, consumer);
+        batch.clear();
+      }
+      return true;
+    });
+    getValues(batch, consumer);
+
+    if (top.isEmpty())
+      return null;
+
+    List<V> values = new ArrayList<>(top);
+    values.sort(comparator.reversed());
+    return values;
+  }
+
+  /**
+   * Search the values by key allowing typos: the key may differ from a prefix of the value keys by up to maxEdits
+   * inserted, deleted or substituted chars (Levenshtein distance)
+   *
+   * @param key      - trie key
+   * @param maxEdits - max edit distance
+   * @return list of values related to the key ordered by distance ascending
+   */
+  public List<V> searchFuzzy(CharSequence key, int maxEdits) {
+    checkSearchKeyInputParameter(key);
+    key = normalize(key);
+
+    if (maxEdits < 0)
+      throw new RuntimeException("Max edits should not be negative");
+
+    long start = startSearch();
+    try {
+      return getValuesByDistance(index.searchFuzzy(key, maxEdits), maxEdits);
+    } finally {
+      recordSearch(start);
     }
   }
 
+  private List<V> getValuesByDistance(Map<EntryKey, Integer> distances, int maxEdits) {
+    if (distances == null)
+      return null;
+
+    List<List<EntryKey<I, K>>> entryKeysByDistance = new ArrayList<>(maxEdits + 1);
+    for (int distance = 0; distance <= maxEdits; distance++) {
+      entryKeysByDistance.add(new ArrayList<>());
+    }
+    distances.forEach((entryKey, distance) -> entryKeysByDistance.get(distance).add((EntryKey<I, K>) entryKey));
+
+    List<V> values = new ArrayList<>(distances.size());
+    entryKeysByDistance.forEach(entryKeys -> getValues(entryKeys, values::add));
+    return values;
+  }
+
+  /**
+   * Search the set of values whose key (any word of the key in case of free search key) contains the fragment.
+   * Only the values of the caches added with substring search are found
+   *
+   * @param fragment - a part of the trie key
+   * @return set of values whose keys contain the fragment
+   */
+  public Set<V> getSetContaining(CharSequence fragment) {
+
+    checkSearchKeyInputParameter(fragment);
+    fragment = normalize(fragment);
+
+    long start = startSearch();
+    Set<V> values = getValues((Set) suffixIndex.search(fragment));
+    recordSearch(start);
+    return values;
+  }
+
+  /**
+   * Search the set of values of some caches whose key contains the fragment
+   * (see {@link #getSetContaining(CharSequence)} and {@link #getSet(CharSequence, Set)})
+   *
+   * @param fragment - a part of the trie key
+   * @param cacheIds - ids of the caches to search
+   * @return set of values of the caches whose keys contain the fragment
+   */
+  public Set<V> getSetContaining(CharSequence fragment, Set<I> cacheIds) {
+    checkSearchKeyInputParameter(fragment);
+    checkCacheIdsInputParameter(cacheIds);
+    fragment = normalize(fragment);
+
+    long start = startSearch();
+    Set<V> values = getValues((Set) suffixIndex.search(fragment, cacheIds));
+    recordSearch(start);
+    return values;
+  }
+
+  /**
+   * Stream the values by key lazily.
+   * A value is taken from its cache (and loaded if it has expired) only when the stream consumer pulls it,
+   * so for example {@code trie.stream(key).limit(10)} resolves 10 values only
+   *
+   * @param key - trie key
+   * @return stream of values related to the key
+   */
+  public Stream<V> stream(CharSequence key) {
+    return streamKeys(key).map(this::getValue);
+  }
+
+  /**
+   * Stream the entry keys (cache id and key within the cache) by key lazily, no value is taken from the caches
+   *
+   * @param key - trie key
+   * @return stream of entry keys related to the key
+   */
+  @SuppressWarnings("unchecked")
+  public Stream<EntryKey<I, K>> streamKeys(CharSequence key) {
+
+    checkSearchKeyInputParameter(key);
+    key = normalize(key);
+
+    Iterator<EntryKey<I, K>> iterator = (Iterator) index.iterator(key);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+            Spliterator.DISTINCT | Spliterator.NONNULL), false);
+  }
+
+  /**
+   * Count the values by key, no value is taken from the caches
+   *
+   * @param key - trie key
+   * @return amount of values related to the key
+   */
+  public int count(CharSequence key) {
+
+    checkSearchKeyInputParameter(key);
+    key = normalize(key);
+
+    return index.count(key);
+  }
+
+  /**
+   * Count the values by a key given as a range of a char array, neither a string nor a value is taken
+   *
+   * @param chars  - chars of the trie key
+   * @param offset - offset of the key in the array
+   * @param length - key length
+   * @return amount of values related to the key
+   */
+  public int count(char[] chars, int offset, int length) {
+    checkSearchKeyInputParameter(chars, offset, length);
+    if (keyNormalizer != null)
+      return count(new String(chars, offset, length));
+
+    return index.count(chars, offset, length);
+  }
+
+  /**
+   * Count the values of some caches by key, no value is taken from the caches (see {@link #getSet(CharSequence, Set)})
+   *
+   * @param key      - trie key
+   * @param cacheIds - ids of the caches to search
+   * @return amount of values of the caches related to the key
+   */
+  public int count(CharSequence key, Set<I> cacheIds) {
+    checkSearchKeyInputParameter(key);
+    checkCacheIdsInputParameter(cacheIds);
+    key = normalize(key);
+
+    return index.count(key, cacheIds);
+  }
+
+  /**
+   * Write the trie index (the keys and the entry keys of the values of all the caches) to a snapshot file.
+   * The values are not written, they are loaded by the build functions of the caches after the snapshot is read.
+   * The snapshot is consistent if the trie is not changed while writing, the concurrent changes may be lost.
+   * The suffixes of the caches with substring search are written to a sibling file named as the snapshot file
+   * with ".suffixes" extension
+   *
+   * @param file         - snapshot file (replaced when the snapshot is complete)
+   * @param cacheIdCodec - binary codec of the cache ids
+   * @param keyCodec     - binary codec of the cache keys
+   */
+  public void writeSnapshot(Path file, SnapshotCodec<I> cacheIdCodec, SnapshotCodec<K> keyCodec) {
+    if (index.isFrozen())
+      throw new RuntimeException("Unable to write a snapshot of a frozen trie");
+
+    flush();
+
+    try {
+      TrieSnapshot<I, K> snapshot = new TrieSnapshot<>(cacheIdCodec, keyCodec);
+      snapshot.write(index, getEntryCounts(), file);
+      if (suffixIndex.getRoot().getChildren() != null) {
+        snapshot.write(suffixIndex, Collections.emptyMap(), getSuffixesFile(file));
+      } else {
+        Files.deleteIfExists(getSuffixesFile(file));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Unable to write the trie snapshot %s", file), e);
+    }
+  }
+
+  /**
+   * Read the trie index from a snapshot file written by {@link #writeSnapshot}, so the trie is searchable at once
+   * without putting the values again. The trie should be empty and have the same settings as the written one,
+   * and all the caches of the snapshot should be added already. The values are loaded to the caches lazily
+   * by their build functions when they are searched
+   *
+   * @param file         - snapshot file
+   * @param cacheIdCodec - binary codec of the cache ids
+   * @param keyCodec     - binary codec of the cache keys
+   */
+  public void readSnapshot(Path file, SnapshotCodec<I> cacheIdCodec, SnapshotCodec<K> keyCodec) {
+    flush();
+    TrieSnapshot.Content<K> content;
+    try {
+      TrieSnapshot<I, K> snapshot = new TrieSnapshot<>(cacheIdCodec, keyCodec);
+      content = snapshot.read(index, file);
+      if (Files.exists(getSuffixesFile(file))) {
+        TrieSnapshot.Content<K> suffixes = snapshot.read(suffixIndex, getSuffixesFile(file));
+        suffixIndex.restore(suffixes.children, suffixes.nodeSize, suffixes.dictionary);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Unable to read the trie snapshot %s", file), e);
+    }
+
+    for (EntryKey entryKey : content.entryKeys) {
+      getCacheById((I) entryKey.getCacheId()).addRestored((K) entryKey.getKey());
+    }
+
+    index.restore(content.children, content.nodeSize, content.dictionary);
+    if (prefixCache != null) {
+      prefixCache.invalidateAll();
+    }
+    content.entryCounts.forEach((cacheId, count) -> getCacheById((I) cacheId).addEntryCount(count));
+  }
+
+  /**
+   * Compile the trie nodes to a read-only segment in a memory mapped file, so the nodes are kept out of the heap
+   * and don't take GC time. The segment answers the same searches by walking offsets in the file, the following
+   * writes go to new nodes in the heap (delta) merged to the segment by the next call, so the method may be called
+   * periodically. Searches go on while the segment is compiled, but writers wait for it
+   *
+   * @param file - segment file (replaced when the segment is complete, the previous segment may be in the same file)
+   */
+  public void freeze(Path file) {
+    flush();
+    try {
+      index.freeze(file);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Unable to write the frozen segment %s", file), e);
+    }
+  }
+
+  /**
+   * Wait until the trie writes made before the call are applied, so the following searches find them
+   * (read-your-writes barrier of the write-behind, see {@link TrieBuilder#writeBehind}). A trie without
+   * the write-behind is written by the writes themselves, so the call returns at once
+   *
+   * @throws RuntimeException if a trie write applied behind the writers failed since the previous flush
+   */
+  public void flush() {
+    if (indexer != null) {
+      indexer.flush();
+    }
+  }
+
+  /**
+   * Get values from their caches by entry keys.
+   * The values of one cache are taken at once, so the expired ones are loaded in bulk (see Caffeine getAll doc)
+   *
+   * @param entryKeys - entry keys
+   * @param consumer  - consumer of the values
+   */
+  private void getValues(Collection<EntryKey<I, K>> entryKeys, Consumer<V> consumer) {
+    if (entryKeys.isEmpty())
+      return;
+
+    groupByCacheId(entryKeys).forEach((cacheId, keys) ->
+            getForSearch(() -> cacheList.get(cacheId).getCache().getAll(keys)).values().forEach(consumer));
+  }
+
   /**
-   * Remove a value from a trie by key
+   * Group the keys of entry keys by cache id
    *
-   * @param key   searchable key for the prefix tree
-   * @param value value {@link EntryKey}
+   * @param entryKeys - entry keys
+   * @return keys by cache id
    */
-  private boolean removeFromTrie(String key, EntryKey<I, K> value) {
-    TrieNode<K> node = root.get(key.charAt(0));
-    if (node == null || node.getSequences() == null)
-      return false;
+  private Map<I, List<K>> groupByCacheId(Collection<EntryKey<I, K>> entryKeys) {
+    Map<I, List<K>> keysByCacheId = new HashMap<>();
+    entryKeys.forEach(s -> keysByCacheId.computeIfAbsent(s.getCacheId(), id -> new ArrayList<>()).add(s.getKey()));
+    return keysByCacheId;
+  }
+
+  /**
+   * Get a value from its cache by entry key (the value is loaded if it has expired)
+   *
+   * @param entryKey - entry key
+   * @return the value
+   */
+  private V getValue(EntryKey<I, K> entryKey) {
+    return getForSearch(() -> cacheList.get(entryKey.getCacheId()).getCache().get(entryKey.getKey()));
+  }
 
-    TrieNode<K> lastNode = searchLastNode(node, key, key.length(), 1);
+  /**
+   * Take values from the caches for a search, the loader calls made meanwhile by the thread are counted as
+   * the loads of the search (see {@link TrieStats#getLoadCount()})
+   *
+   * @param getter - the function taking the values from the caches
+   * @return the values
+   */
+  private <T> T getForSearch(Supplier<T> getter) {
+    if (statsCounter == null)
+      return getter.get();
 
-    if (lastNode == null)
-      return false;
+    searching.set(Boolean.TRUE);
+    try {
+      return getter.get();
+    } finally {
+      searching.remove();
+    }
+  }
 
-    TrieNode<K> firstNode = remove(lastNode, key, key.length() - 1, value);
+  private static Path getSuffixesFile(Path file) {
+    return file.resolveSibling(file.getFileName() + ".suffixes");
+  }
 
-    if (firstNode.getSequences() != null && firstNode.getSequences().size() == 0) {
-      root.remove(key.charAt(0));
-      nodeSize--;
+  /**
+   * Get amount of the entries by cache id
+   *
+   * @return amount of the entries by cache id
+   */
+  private Map<I, Long> getEntryCounts() {
+    Map<I, Long> entryCounts = new HashMap<>();
+    cacheList.forEach((cacheId, cache) -> entryCounts.put(cacheId, cache.getEntryCount()));
+    return entryCounts;
+  }
+
+  private long startSearch() {
+    return statsCounter != null ? System.nanoTime() : 0L;
+  }
+
+  private void recordSearch(long start) {
+    if (statsCounter != null) {
+      statsCounter.recordSearch(System.nanoTime() - start);
     }
+  }
+
+  private void recordLoad() {
+    if (statsCounter != null && searching.get() != null) {
+      statsCounter.recordLoad();
+    }
+  }
 
-    return true;
+  /**
+   * Search the entry keys by key, the entry keys of a short key are taken from the prefix cache if it's enabled.
+   * A cached result is computed under the lock of its search key in the prefix cache, so an invalidation by a
+   * concurrent write waits for the computation and removes the result computed before the write
+   *
+   * @param key - trie key
+   * @return set of entry keys or null
+   */
+  private Set<EntryKey> search(CharSequence key) {
+    if (prefixCache == null || key.length() > maxCachedPrefixLength)
+      return index.search(key);
+
+    Set<EntryKey> set = prefixCache.get(key.toString(), k -> {
+      Set<EntryKey> found = index.search(k);
+      return found == null || found.isEmpty() ? Collections.emptySet()
+              : Collections.unmodifiableSet(new HashSet<>(found));
+    });
+    return set.isEmpty() ? null : set;
   }
 
   /**
-   * Remove a nodes from the trie based on se char sequence (trie key)
+   * Invalidate the cached results of the prefixes of a key written to the trie (the searches the key is found by)
    *
-   * @param node   - root node
-   * @param key    - trie key
-   * @param offset - current char in the key
-   * @param value  - the value related to the key
-   * @return first node of the removed sequence
+   * @param key   - the string containing the searchable key
+   * @param start - offset of the searchable key in the string
+   * @param end   - end of the searchable key in the string (exclusive)
    */
-  private TrieNode<K> remove(TrieNode<K> node, String key, int offset, EntryKey value) {
+  private void invalidatePrefixes(String key, int start, int end) {
+    if (prefixCache == null)
+      return;
 
-    Set<EntryKey> values = node.getValues();
-    if (values != null) {
-      values.remove(value);
+    int to = Math.min(end - start, maxCachedPrefixLength);
+    for (int length = Math.max(index.getMinSearchableKeyLength(), 1); length <= to; length++) {
+      prefixCache.invalidate(key.substring(start, start + length));
     }
+  }
 
-    TrieNode<K> parent = node.getParent();
+  /**
+   * Normalize a key by the key normalizer if it's set
+   *
+   * @param key - the key
+   * @return the normalized key
+   */
+  private CharSequence normalize(CharSequence key) {
+    return keyNormalizer != null ? keyNormalizer.normalize(key.toString()) : key;
+  }
 
-    if (parent == null)
-      return node;
+  private CharSequence[] normalize(CharSequence[] keys) {
+    if (keyNormalizer == null)
+      return keys;
 
-    Map<Character, TrieNode<K>> children = node.getSequences();
-    if ((children == null || children.size() == 0) && (values == null || values.size() == 0)) {
-      node.setParent(null);
-      parent.getSequences().remove(key.charAt(offset));
-      nodeSize--;
+    CharSequence[] normalized = new CharSequence[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      normalized[i] = keyNormalizer.normalize(keys[i].toString());
     }
+    return normalized;
+  }
 
-    return remove(parent, key, --offset, value);
+  /**
+   * Load the value of a key restored from a snapshot if it's not loaded yet, so the searchable key indexed by
+   * the snapshot is known to the write of the key. The keys which are not restored are not loaded
+   *
+   * @param cache - the cache
+   * @param key   - cache key
+   */
+  private void loadRestored(TrieCache<K, V> cache, K key) {
+    if (!cache.isRestored(key))
+      return;
+
+    if (cache.getCache().getIfPresent(key) == null) {
+      cache.getCache().get(key);
+    }
+    cache.removeRestored(key);
   }
 
-  private Set<EntryKey<I, K>> search(TrieNode<K> node, String key, int length, int offset) {
-    TrieNode lastNode = searchLastNode(node, key, length, offset);
-    return lastNode != null ? lastNode.getValues() : null;
+  /**
+   * Mark the key of a value loaded by the loader of a synchronous cache, the value is not put to the trie, so
+   * the key is indexed by the next put of it. The keys restored from a snapshot are in the trie already
+   *
+   * @param cacheId - cache id
+   * @param key     - cache key
+   * @param value   - the loaded value or null if there is no value
+   * @return the loaded value
+   */
+  private V loaded(I cacheId, K key, V value) {
+    TrieCache<K, V> cache = cacheList.get(cacheId);
+    if (value != null && !cache.isRestored(key)) {
+      cache.addUnindexed(key);
+    }
+    return value;
   }
 
   /**
-   * Search the last node in the trie based on the sequence of chars (key)
+   * Apply a value reloaded by the refresh of a synchronous cache as a put of it, so the trie keeps the key indexed
+   * (or not indexed) as it was and only the changed words are reindexed. The reloaded value is put under the lock
+   * of the key unless the value is changed meanwhile, then the refresh is discarded by the cache
    *
-   * @param node   - root node
-   * @param key    - trie key
-   * @param length - key length
-   * @param offset - current char in the key
-   * @return last node of the sequence in the trie
-   */
-  private TrieNode<K> searchLastNode(TrieNode<K> node, String key, int length, int offset) {
-    if (length == offset)
-      return node;
-    if (node.getSequences() != null) {
-      TrieNode<K> nextNode = node.getSequences().get(key.charAt(offset));
-      if (nextNode != null && node.getSequences() != null) {
-        return searchLastNode(nextNode, key, length, ++offset);
+   * @param cacheId  - cache id
+   * @param key      - cache key
+   * @param oldValue - the refreshed value
+   * @param value    - the reloaded value or null if there is no value
+   * @return the value of the key after the reload
+   */
+  private V reloaded(I cacheId, K key, V oldValue, V value) {
+    TrieCache<K, V> cache = cacheList.get(cacheId);
+    return cache.getCache().asMap().computeIfPresent(key, (k, currentValue) -> {
+      if (currentValue != oldValue)
+        return currentValue;
+
+      // the removal of a value is unindexed by the cache writer
+      if (value != null && !cache.isUnindexed(k)) {
+        reindex(oldValue.getKey(), value.getKey(), new EntryKey<>(cacheId, k), cache);
       }
-    }
-    return null;
+      return value;
+    });
+  }
+
+  /**
+   * Get the analyzer of the keys split by a delimiter
+   *
+   * @param delimiter - delimiter char if case of free search key
+   * @return the analyzer (the whole key is the token if there is no delimiter)
+   */
+  private static KeyAnalyzer analyzer(String delimiter) {
+    return StringUtils.isEmpty(delimiter) ? KeyAnalyzer.keyword() : KeyAnalyzer.split(delimiter);
   }
 
   /**
-   * Add a sequence of chars (initial key) to the trie
+   * Get the distinct tokens (words) of a normalized searchable key
    *
-   * @param node     - root node
-   * @param sequence - trie key
-   * @param length   - key length
-   * @param offset   - current char in the key
-   * @param value    - the value related to the key
+   * @param key      - searchable key
+   * @param analyzer - analyzer of the keys
+   * @return the words
    */
-  private void add(TrieNode<K> node, String sequence, int length, int offset, EntryKey value) {
+  private Set<String> words(String key, KeyAnalyzer analyzer) {
+    Set<String> words = new LinkedHashSet<>();
+    analyzer.analyze(normalize(key).toString(), (normalized, start, end) ->
+            words.add(normalized.substring(start, end)));
+    return words;
+  }
 
-    if (offset >= minSearchableKeyLength) {
-      if (node.getValues() == null) {
-        node.setValues(new HashSet<>());
+  /**
+   * Reindex an entry whose searchable key is changed: only the words which are not in both keys are touched
+   *
+   * @param oldKey   - the previous searchable key
+   * @param newKey   - the new searchable key
+   * @param entryKey - entry key
+   * @param cache    - the cache of the entry
+   */
+  private void reindex(String oldKey, String newKey, EntryKey<I, K> entryKey, TrieCache<K, V> cache) {
+    // the values loaded by the async loader of an asynchronous cache are not tracked, so they may be not in the trie
+    // and all the words of the new key are put (a put of a word which is in the trie already changes nothing)
+    boolean async = cache.getAsyncCache() != null;
+    if (oldKey.equals(newKey) && !async)
+      return;
+
+    Set<String> oldWords = words(oldKey, cache.getAnalyzer());
+    Set<String> newWords = words(newKey, cache.getAnalyzer());
+    boolean removed = false;
+    for (String word : oldWords) {
+      if (!newWords.contains(word)) {
+        removeFromTrie(word, 0, word.length(), entryKey, cache.isSubstringSearch());
+        removed = true;
+      }
+    }
+    // a removed word takes the entry key off the nodes of its whole path, including the prefixes shared with
+    // the kept words, and a put to a frozen trie masks the entry key in the whole frozen segment, so in both cases
+    // the kept words are put again
+    boolean frozen = index.isFrozen();
+    for (String word : newWords) {
+      if (async || removed || frozen || !oldWords.contains(word)) {
+        putToTrie(word, 0, word.length(), entryKey, cache.isSubstringSearch());
       }
-      node.getValues().add(value);
     }
+  }
 
-    if (length == offset) {
-      return;
+  private void putToTrie(String key, EntryKey<I, K> value, KeyAnalyzer analyzer, boolean substringSearch) {
+    analyzer.analyze(normalize(key).toString(), (normalized, start, end) ->
+            putToTrie(normalized, start, end, value, substringSearch));
+  }
+
+  private void putToTrie(String key, int start, int end, EntryKey<I, K> value, boolean substringSearch) {
+    if (indexer != null) {
+      indexer.put(key, start, end, value, substringSearch);
+    } else {
+      indexToken(key, start, end, value, substringSearch);
     }
+  }
 
-    if (node.getSequences() == null) {
-      HashMap<Character, TrieNode<K>> children = new HashMap<>();
-      node.setSequences(children);
+  private void indexToken(String key, int start, int end, EntryKey value, boolean substringSearch) {
+    index.put(key, start, end, value);
+    invalidatePrefixes(key, start, end);
+    if (substringSearch) {
+      forEachSuffix(key, start, end, (k, suffixStart, suffixEnd) -> suffixIndex.put(k, suffixStart, suffixEnd, value));
     }
+  }
 
-    TrieNode<K> nextNode = node.getSequences().get(sequence.charAt(offset));
+  private void removeFromTrie(String key, EntryKey<I, K> value, KeyAnalyzer analyzer, boolean substringSearch) {
+    analyzer.analyze(normalize(key).toString(), (normalized, start, end) ->
+            removeFromTrie(normalized, start, end, value, substringSearch));
+  }
 
-    if (nextNode == null) {
-      nextNode = new TrieNode<>();
-      nodeSize++;
-      nextNode.setParent(node);
-      node.getSequences().put(sequence.charAt(offset), nextNode);
+  private void removeFromTrie(String key, int start, int end, EntryKey<I, K> value, boolean substringSearch) {
+    if (indexer != null) {
+      indexer.remove(key, start, end, value, substringSearch);
+    } else {
+      unindexToken(key, start, end, value, substringSearch);
     }
+  }
 
-    add(nextNode, sequence, length, ++offset, value);
+  private void unindexToken(String key, int start, int end, EntryKey value, boolean substringSearch) {
+    index.remove(key, start, end, value);
+    invalidatePrefixes(key, start, end);
+    if (substringSearch) {
+      forEachSuffix(key, start, end, (k, suffixStart, suffixEnd) ->
+              suffixIndex.remove(k, suffixStart, suffixEnd, value));
+    }
+  }
+
+  /**
+   * Pass the searchable suffixes of a key (the key itself included) to a consumer as ranges of the string
+   *
+   * @param key      - the string containing the searchable key
+   * @param start    - offset of the searchable key in the string
+   * @param end      - end of the searchable key in the string (exclusive)
+   * @param consumer - consumer of the suffixes
+   */
+  private void forEachSuffix(String key, int start, int end, KeyAnalyzer.TokenConsumer consumer) {
+    for (int i = start; i + Math.max(suffixIndex.getMinSearchableKeyLength(), 1) <= end; i++) {
+      consumer.accept(key, i, end);
+    }
   }
 
   /**
@@ -313,8 +1340,8 @@ public class Trie<I, K, V extends EntryValue> {
    * @param cacheId - cache id
    * @return the cache
    */
-  private Cache<K, V> getCacheById(I cacheId) {
-    Cache<K, V> cache = cacheList.get(cacheId);
+  private TrieCache<K, V> getCacheById(I cacheId) {
+    TrieCache<K, V> cache = cacheList.get(cacheId);
     if (cache == null)
       throw new RuntimeException(String.format("Unable to find a cache with id %s", cacheId));
     return cache;
@@ -331,6 +1358,11 @@ public class Trie<I, K, V extends EntryValue> {
       throw new RuntimeException("Cache id should not be null");
   }
 
+  private void checkCacheIdsInputParameter(Set<I> cacheIds) {
+    if (cacheIds == null)
+      throw new RuntimeException("Cache ids should not be null");
+  }
+
   private void checkKeyInputParameter(K key) {
     if (key == null)
       throw new RuntimeException("Key should not be null");
@@ -340,4 +1372,21 @@ public class Trie<I, K, V extends EntryValue> {
     if (value == null)
       throw new RuntimeException("Value should not be null");
   }
+
+  private void checkSearchKeyInputParameter(CharSequence key) {
+    if (key == null || key.length() == 0)
+      throw new RuntimeException("Key should not be empty");
+  }
+
+  private void checkSearchKeyInputParameter(char[] chars, int offset, int length) {
+    if (chars == null || length <= 0)
+      throw new RuntimeException("Key should not be empty");
+    if (offset < 0 || offset > chars.length - length)
+      throw new RuntimeException("Key range is out of the array bounds");
+  }
+
+  private void checkLimitInputParameter(int limit) {
+    if (limit <= 0)
+      throw new RuntimeException("Limit should be positive");
+  }
 }
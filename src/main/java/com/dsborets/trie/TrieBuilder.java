@@ -0,0 +1,157 @@
+package com.dsborets.trie;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builder of a {@link Trie}, for example:
+ * <pre>{@code
+ * Trie<Integer, Integer, Record> trie = Trie.newBuilder()
+ *     .minSearchableKeyLength(3)
+ *     .pathCompression()
+ *     .build();
+ * }</pre>
+ */
+public final class TrieBuilder {
+  int minSearchableKeyLength = Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH;
+
+  int concurrencyLevel = Trie.DEFAULT_CONCURRENCY_LEVEL;
+
+  boolean pathCompression;
+
+  boolean terminalPostings;
+
+  boolean recordStats;
+
+  int maxCachedPrefixLength;
+
+  long prefixCacheSize;
+
+  KeyNormalizer keyNormalizer;
+
+  int writeBehindQueueCapacity;
+
+  long maxStalenessNanos;
+
+  TrieBuilder() {
+  }
+
+  /**
+   * Set min length of a key to be searchable
+   *
+   * @param minSearchableKeyLength - min length of a key to be searchable
+   * @return the builder
+   */
+  public TrieBuilder minSearchableKeyLength(int minSearchableKeyLength) {
+    this.minSearchableKeyLength = minSearchableKeyLength;
+    return this;
+  }
+
+  /**
+   * Set estimated number of concurrently writing threads (amount of write lock stripes)
+   *
+   * @param concurrencyLevel - estimated number of concurrently writing threads
+   * @return the builder
+   */
+  public TrieBuilder concurrencyLevel(int concurrencyLevel) {
+    if (concurrencyLevel <= 0)
+      throw new RuntimeException("Concurrency level should be positive");
+
+    this.concurrencyLevel = concurrencyLevel;
+    return this;
+  }
+
+  /**
+   * Collapse chains of single child nodes into one node labeled by the whole char sequence (radix tree).
+   * It reduces the amount of nodes, so the trie takes less memory and a search follows less links.
+   * The amount of nodes reported by {@link Trie#getNodeSize()} is the amount of the collapsed nodes.
+   *
+   * @return the builder
+   */
+  public TrieBuilder pathCompression() {
+    this.pathCompression = true;
+    return this;
+  }
+
+  /**
+   * Keep an entry key only at the node its searchable key ends at instead of every node on the path of the key.
+   * Memory of the entry keys becomes linear in the key length as well as the cost of an insert and a delete,
+   * while a search collects the entry keys of the whole subtree of the prefix.
+   *
+   * @return the builder
+   */
+  public TrieBuilder terminalPostings() {
+    this.terminalPostings = true;
+    return this;
+  }
+
+  /**
+   * Record the search latencies, the loader calls and the evictions for {@link Trie#getStats()}.
+   * The counters are striped, so the recording is cheap enough to be left on
+   *
+   * @return the builder
+   */
+  public TrieBuilder recordStats() {
+    this.recordStats = true;
+    return this;
+  }
+
+  /**
+   * Cache the entry keys found by short search keys (hot prefixes of autocomplete), so a repeated search takes
+   * them by one hash lookup instead of walking the trie. A write of a key invalidates the cached results of its
+   * prefixes, so the cached results are consistent with the trie
+   *
+   * @param maxPrefixLength - max length of a cached search key (a write invalidates up to this amount of prefixes)
+   * @param maximumSize     - max amount of cached search keys
+   * @return the builder
+   */
+  public TrieBuilder prefixCache(int maxPrefixLength, long maximumSize) {
+    if (maxPrefixLength <= 0 || maximumSize <= 0)
+      throw new RuntimeException("Max prefix length and maximum size of the prefix cache should be positive");
+
+    this.maxCachedPrefixLength = maxPrefixLength;
+    this.prefixCacheSize = maximumSize;
+    return this;
+  }
+
+  /**
+   * Normalize the searchable keys of the values and the search keys (Unicode form, case, accents).
+   * A key is normalized once per write and once per search
+   *
+   * @param keyNormalizer - the normalizer (see {@link KeyNormalizer} for the provided ones)
+   * @return the builder
+   */
+  public TrieBuilder keyNormalizer(KeyNormalizer keyNormalizer) {
+    if (keyNormalizer == null)
+      throw new RuntimeException("Key normalizer should not be null");
+
+    this.keyNormalizer = keyNormalizer;
+    return this;
+  }
+
+  /**
+   * Apply the trie writes of the cache writes, removals and evictions in batches on a single indexer thread instead
+   * of the write path (write-behind), so a cache write only queues the tokens of its key. A search doesn't find
+   * a value until its write is applied: a write is applied after the max staleness at most, unless the indexer is
+   * behind, and {@link Trie#flush()} waits until the writes made before it are applied (read-your-writes).
+   * A writer blocks while the queue is full
+   *
+   * @param queueCapacity - max amount of the queued token writes
+   * @param maxStaleness  - max time a write waits for the following ones to be applied in one batch
+   * @param unit          - time unit of the max staleness
+   * @return the builder
+   */
+  public TrieBuilder writeBehind(int queueCapacity, long maxStaleness, TimeUnit unit) {
+    if (queueCapacity <= 0)
+      throw new RuntimeException("Queue capacity of the write-behind should be positive");
+    if (maxStaleness < 0)
+      throw new RuntimeException("Max staleness of the write-behind should not be negative");
+
+    this.writeBehindQueueCapacity = queueCapacity;
+    this.maxStalenessNanos = unit.toNanos(maxStaleness);
+    return this;
+  }
+
+  public <I, K, V extends EntryValue> Trie<I, K, V> build() {
+    return new Trie<>(this);
+  }
+}
@@ -0,0 +1,134 @@
+package com.dsborets.trie;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of the trie values and the way the keys of its values are indexed.
+ * An asynchronous cache is kept along with its synchronous view. The trie is updated by the puts of both kinds of
+ * caches, while the removals are handled by the cache writer for a synchronous cache and explicitly for
+ * an asynchronous one (Caffeine doesn't support writers of async caches)
+ */
+class TrieCache<K, V> {
+  private final LoadingCache<K, V> cache;
+  private final AsyncLoadingCache<K, V> asyncCache;
+  private final KeyAnalyzer analyzer;
+  private final boolean substringSearch;
+  private final LongAdder entryCount = new LongAdder();
+  // the keys whose values are loaded to the cache by the loader, but not put, so they are not in the trie
+  private final Set<K> unindexedKeys = ConcurrentHashMap.newKeySet();
+  // the keys restored from a snapshot, which are in the trie, but whose values are not loaded to the cache yet
+  private final Set<K> restoredKeys = ConcurrentHashMap.newKeySet();
+
+  TrieCache(LoadingCache<K, V> cache, KeyAnalyzer analyzer, boolean substringSearch) {
+    this.cache = cache;
+    this.asyncCache = null;
+    this.analyzer = analyzer;
+    this.substringSearch = substringSearch;
+  }
+
+  TrieCache(AsyncLoadingCache<K, V> asyncCache, KeyAnalyzer analyzer, boolean substringSearch) {
+    this.cache = asyncCache.synchronous();
+    this.asyncCache = asyncCache;
+    this.analyzer = analyzer;
+    this.substringSearch = substringSearch;
+  }
+
+  LoadingCache<K, V> getCache() {
+    return cache;
+  }
+
+  AsyncLoadingCache<K, V> getAsyncCache() {
+    return asyncCache;
+  }
+
+  KeyAnalyzer getAnalyzer() {
+    return analyzer;
+  }
+
+  /**
+   * Check if the suffixes of the keys of the cache are indexed to search the values by a part of the key
+   *
+   * @return true if the suffixes are indexed
+   */
+  boolean isSubstringSearch() {
+    return substringSearch;
+  }
+
+  /**
+   * Mark a key restored from a snapshot, the key is in the trie while its value is not loaded to the cache yet
+   *
+   * @param key - cache key
+   */
+  void addRestored(K key) {
+    restoredKeys.add(key);
+  }
+
+  /**
+   * Check if a key is restored from a snapshot and not written since, so the trie may keep the key of a value
+   * which is not loaded to the cache yet
+   *
+   * @param key - cache key
+   * @return true if the key is restored from a snapshot
+   */
+  boolean isRestored(K key) {
+    return !restoredKeys.isEmpty() && restoredKeys.contains(key);
+  }
+
+  /**
+   * Unmark a key restored from a snapshot (if it's marked), once its value is in the cache or out of the trie
+   *
+   * @param key - cache key
+   */
+  void removeRestored(K key) {
+    if (!restoredKeys.isEmpty()) {
+      restoredKeys.remove(key);
+    }
+  }
+
+  /**
+   * Get amount of the entries of the cache (including the restored ones which are not loaded yet)
+   *
+   * @return amount of the entries
+   */
+  long getEntryCount() {
+    return entryCount.sum();
+  }
+
+  void addEntryCount(long delta) {
+    entryCount.add(delta);
+  }
+
+  /**
+   * Mark a key whose value is loaded to the cache by the loader, so the key is not in the trie
+   *
+   * @param key - cache key
+   */
+  void addUnindexed(K key) {
+    unindexedKeys.add(key);
+  }
+
+  /**
+   * Check if a key is marked as loaded to the cache by the loader
+   *
+   * @param key - cache key
+   * @return true if the value of the key was loaded, so the key is not in the trie
+   */
+  boolean isUnindexed(K key) {
+    return !unindexedKeys.isEmpty() && unindexedKeys.contains(key);
+  }
+
+  /**
+   * Unmark a key whose value is loaded to the cache by the loader (if it's marked)
+   *
+   * @param key - cache key
+   * @return true if the value of the key was loaded, so the key is not in the trie
+   */
+  boolean removeUnindexed(K key) {
+    return !unindexedKeys.isEmpty() && unindexedKeys.remove(key);
+  }
+}
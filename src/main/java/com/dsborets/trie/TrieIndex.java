@@ -0,0 +1,1134 @@
+package com.dsborets.trie;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Prefix tree of searchable keys, every node keeps the entry keys {@link EntryKey} of the values whose keys pass
+ * through the node. In the terminal postings mode an entry key is kept only by the node its key ends at, and a
+ * search collects the entry keys of the whole subtree instead.
+ * <p>
+ * Searches never take a lock, while writers are synchronized per subtree, striped by the first char of the key.
+ * In the path compression mode chains of single child nodes are collapsed into one node labeled by the whole
+ * char sequence ({@link RadixTrieNode}), so a search may end in the middle of a node label.
+ * <p>
+ * The index may be frozen: its nodes are compiled to a memory mapped segment ({@link FrozenTrieSegment}) out of
+ * the heap, and the following writes go to new mutable nodes (delta) merged to the segment by the next freezing.
+ * The entry keys written after freezing are masked in the segment (tombstones), so a search combines the segment
+ * without the tombstones and the delta.
+ * <p>
+ * The mutable nodes keep the entry keys encoded to dense int ids by a dictionary ({@link PostingDictionary}) in
+ * compact posting lists ({@link PostingList}), the dictionary is replaced along with the nodes by freezing.
+ */
+class TrieIndex<K> {
+  private final int minSearchableKeyLength;
+
+  private final boolean pathCompression;
+
+  private final boolean terminalPostings;
+
+  private volatile Segments<K> segments = new Segments<>(new TrieNode<>((char) 0), null, null,
+          new PostingDictionary());
+
+  private final Object[] writeLocks;
+
+  private final AtomicInteger nodeSize = new AtomicInteger(0);
+
+  TrieIndex(int minSearchableKeyLength, int concurrencyLevel, boolean pathCompression, boolean terminalPostings) {
+    this.minSearchableKeyLength = minSearchableKeyLength;
+    this.pathCompression = pathCompression;
+    this.terminalPostings = terminalPostings;
+
+    int stripes = Integer.highestOneBit(concurrencyLevel);
+    writeLocks = new Object[stripes < concurrencyLevel ? stripes << 1 : stripes];
+    for (int i = 0; i < writeLocks.length; i++) {
+      writeLocks[i] = new Object();
+    }
+  }
+
+  /**
+   * Get trie nodes amount
+   *
+   * @return trie nodes amount
+   */
+  int getNodeSize() {
+    FrozenTrieSegment frozen = segments.frozen;
+    return nodeSize.get() + (frozen != null ? frozen.getNodeSize() : 0);
+  }
+
+  /**
+   * Walk the heap nodes to get the sizes of their posting lists and estimate their heap size
+   * (64-bit JVM with compressed references). The walk doesn't lock, so the concurrent changes may be missed
+   *
+   * @param postingSizes - histogram to add the sizes of the posting lists to (see {@link TrieStatsCounter#bucketOf})
+   * @return estimated amount of bytes of the nodes, their children arrays, posting lists and the dictionary
+   */
+  long collectStats(long[] postingSizes) {
+    Segments<K> current = segments;
+    long bytes = current.dictionary.estimateBytes();
+    ArrayDeque<TrieNode<K>> stack = new ArrayDeque<>();
+    stack.push(current.root);
+    while (!stack.isEmpty()) {
+      TrieNode<K> node = stack.pop();
+      char[] tail = node.getTail();
+      bytes += tail == null ? 24 : 32 + align(16 + 2L * tail.length);
+
+      TrieNode<K>[] children = node.getChildren();
+      if (children != null) {
+        bytes += align(16 + 4L * children.length);
+        for (TrieNode<K> child : children) {
+          stack.push(child);
+        }
+      }
+
+      PostingList values = node.getValues();
+      if (values != null) {
+        postingSizes[TrieStatsCounter.bucketOf(values.size())]++;
+        bytes += values.estimateBytes();
+      }
+    }
+    return bytes;
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  int getMinSearchableKeyLength() {
+    return minSearchableKeyLength;
+  }
+
+  boolean isPathCompression() {
+    return pathCompression;
+  }
+
+  boolean isTerminalPostings() {
+    return terminalPostings;
+  }
+
+  TrieNode<K> getRoot() {
+    return segments.root;
+  }
+
+  boolean isFrozen() {
+    return segments.frozen != null;
+  }
+
+  /**
+   * Set the first level nodes of an empty trie (for example, read from a snapshot)
+   *
+   * @param children   - the first level nodes sorted by char
+   * @param nodeSize   - amount of the nodes
+   * @param dictionary - the dictionary of the ids of the posting lists of the nodes
+   */
+  void restore(TrieNode<K>[] children, int nodeSize, PostingDictionary dictionary) {
+    withAllWriteLocks(0, () -> {
+      if (!isEmpty())
+        throw new RuntimeException("The trie should be empty to be restored");
+
+      install(children, nodeSize, dictionary);
+    });
+  }
+
+  /**
+   * Put searchable keys with related values to the trie at once.
+   * The nodes of an empty trie are built from the sorted keys in one pass in parallel ({@link BulkTrieBuilder}),
+   * the keys are put one by one to a non-empty trie. The emptiness is checked before the build, so the nodes are
+   * not built for a trie which is not empty, and again under all the write locks to install them
+   *
+   * @param entries - searchable keys with related values (sorted by key to skip sorting)
+   * @param pool    - the pool to build the nodes in
+   */
+  @SuppressWarnings("unchecked")
+  void putAll(List<Map.Entry<String, EntryKey>> entries, ForkJoinPool pool) {
+    // a key shorter than the min searchable length is never found, so no need to keep its path compressed nodes
+    int minLength = pathCompression ? Math.max(minSearchableKeyLength, 1) : 1;
+    Map.Entry<String, EntryKey>[] searchable = entries.stream()
+            .filter(entry -> entry.getKey().length() >= minLength)
+            .toArray(Map.Entry[]::new);
+
+    if (isEmpty()) {
+      // the nodes are built with their own dictionary, which replaces the one of the empty trie
+      PostingDictionary dictionary = new PostingDictionary();
+      BulkTrieBuilder<K> builder = new BulkTrieBuilder<>(minSearchableKeyLength, pathCompression, terminalPostings,
+              searchable, dictionary);
+      TrieNode<K>[] children = builder.build(pool);
+
+      boolean[] installed = new boolean[1];
+      withAllWriteLocks(0, () -> {
+        if (isEmpty()) {
+          install(children, builder.getNodeSize(), dictionary);
+          installed[0] = true;
+        }
+      });
+      if (installed[0])
+        return;
+    }
+
+    // a writer has put a key meanwhile, the built nodes are dropped
+    for (Map.Entry<String, EntryKey> entry : searchable) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Check if there are no nodes (exact if the caller holds all the write locks, a writer may change it otherwise)
+   *
+   * @return true if the trie is empty
+   */
+  private boolean isEmpty() {
+    Segments<K> current = segments;
+    return current.root.getChildren() == null && current.frozen == null;
+  }
+
+  /**
+   * Set the first level nodes of an empty trie (the caller must hold all the write locks)
+   *
+   * @param children   - the first level nodes sorted by char
+   * @param nodeSize   - amount of the nodes
+   * @param dictionary - the dictionary of the ids of the posting lists of the nodes
+   */
+  private void install(TrieNode<K>[] children, int nodeSize, PostingDictionary dictionary) {
+    TrieNode<K> root = new TrieNode<>((char) 0);
+    root.setChildren(children);
+    segments = new Segments<>(root, null, null, dictionary);
+    this.nodeSize.addAndGet(nodeSize);
+  }
+
+  /**
+   * Run an action holding all the write locks, so no writer changes the trie meanwhile
+   *
+   * @param stripe - the first lock to take
+   * @param action - the action
+   */
+  private <E extends Exception> void withAllWriteLocks(int stripe, WriteAction<E> action) throws E {
+    if (stripe < writeLocks.length) {
+      synchronized (writeLocks[stripe]) {
+        withAllWriteLocks(stripe + 1, action);
+      }
+    } else {
+      action.run();
+    }
+  }
+
+  /**
+   * Put a searchable key with related value to the trie
+   *
+   * @param key   searchable key for the prefix tree
+   * @param value value {@link EntryKey}
+   */
+  void put(String key, EntryKey value) {
+    put(key, 0, key.length(), value);
+  }
+
+  /**
+   * Put a range of a string as a searchable key with related value to the trie, so the tokens of a key are put
+   * without substrings
+   *
+   * @param key   the string containing the searchable key
+   * @param from  offset of the searchable key in the string
+   * @param to    end of the searchable key in the string (exclusive)
+   * @param value value {@link EntryKey}
+   */
+  void put(String key, int from, int to, EntryKey value) {
+    if (from >= to)
+      return;
+
+    synchronized (getWriteLock(key.charAt(from))) {
+      Segments<K> current = segments;
+      if (current.frozen != null) {
+        current.tombstones.add(value);
+      }
+      add(current, key, from, to, value);
+    }
+  }
+
+  /**
+   * Compile the index to a memory mapped segment merged with the previous one, the following writes go to new
+   * mutable nodes. Searches go on while the segment is compiled, but writers wait for it
+   *
+   * @param file - segment file (replaced when the segment is complete)
+   * @throws IOException in case of an I/O error
+   */
+  void freeze(Path file) throws IOException {
+    withAllWriteLocks(0, () -> {
+      Segments<K> current = segments;
+      FrozenTrieSegment frozen = FrozenTrieSegment.compile(file, current.frozen,
+              current.tombstones != null ? current.tombstones : Collections.emptySet(), current.root,
+              minSearchableKeyLength, pathCompression, terminalPostings);
+      segments = new Segments<>(new TrieNode<>((char) 0), frozen, ConcurrentHashMap.newKeySet(),
+              new PostingDictionary());
+      nodeSize.set(0);
+    });
+  }
+
+  /**
+   * Remove a value from the trie by key
+   *
+   * @param key   searchable key for the prefix tree
+   * @param value value {@link EntryKey}
+   * @return true if the key was found in the trie
+   */
+  boolean remove(String key, EntryKey value) {
+    return remove(key, 0, key.length(), value);
+  }
+
+  /**
+   * Remove a value from the trie by a range of a string (see {@link #put(String, int, int, EntryKey)})
+   *
+   * @param key   the string containing the searchable key
+   * @param from  offset of the searchable key in the string
+   * @param to    end of the searchable key in the string (exclusive)
+   * @param value value {@link EntryKey}
+   * @return true if the key was found in the trie
+   */
+  boolean remove(String key, int from, int to, EntryKey value) {
+    if (from >= to)
+      return false;
+
+    synchronized (getWriteLock(key.charAt(from))) {
+      Segments<K> current = segments;
+      if (current.frozen != null) {
+        current.tombstones.add(value);
+      }
+
+      if (searchLastNode(current.root, key, from, to) == null)
+        return false;
+
+      removeValue(current, key, from, to, value);
+      return true;
+    }
+  }
+
+  /**
+   * Search the entry keys by key
+   *
+   * @param key searchable key for the prefix tree
+   * @return entry keys of the values the key is a prefix of or null
+   */
+  Set<EntryKey> search(CharSequence key) {
+    if (key.length() < minSearchableKeyLength)
+      return null;
+
+    Segments<K> current = segments;
+    Set<EntryKey> values = getValues(searchLastNode(current.root, key));
+    if (current.frozen == null)
+      return values;
+
+    return getValues(current, current.frozen.searchLastNode(key), values);
+  }
+
+  /**
+   * Search the entry keys by a key given as a range of a char array, no string is created
+   *
+   * @param chars  chars of the searchable key
+   * @param offset offset of the key in the array
+   * @param length key length
+   * @return entry keys of the values the key is a prefix of or null
+   */
+  Set<EntryKey> search(char[] chars, int offset, int length) {
+    if (length < minSearchableKeyLength)
+      return null;
+
+    Segments<K> current = segments;
+    Set<EntryKey> values = getValues(searchLastNode(current.root, chars, offset, length));
+    if (current.frozen == null)
+      return values;
+
+    return getValues(current, current.frozen.searchLastNode(chars, offset, length), values);
+  }
+
+  /**
+   * Search the entry keys of some caches by key. The postings of the other caches are skipped by chunks of ids
+   * in the mutable nodes (see {@link PostingDictionary}), and filtered by cache id in the frozen segment
+   *
+   * @param key      searchable key for the prefix tree
+   * @param cacheIds the cache ids of the entry keys
+   * @return entry keys of the values of the caches the key is a prefix of or null
+   */
+  Set<EntryKey> search(CharSequence key, Set<?> cacheIds) {
+    if (key.length() < minSearchableKeyLength)
+      return null;
+
+    Segments<K> current = segments;
+    Set<EntryKey> set = new HashSet<>();
+    forEachValue(searchLastNode(current.root, key), current.dictionary.getChunks(cacheIds), set::add);
+    if (current.frozen != null) {
+      int frozenNode = current.frozen.searchLastNode(key);
+      if (frozenNode >= 0) {
+        current.frozen.iterator(frozenNode, current.tombstones).forEachRemaining(value -> {
+          if (cacheIds.contains(value.getCacheId())) {
+            set.add(value);
+          }
+        });
+      }
+    }
+    return set.isEmpty() ? null : set;
+  }
+
+  /**
+   * Count the entry keys of some caches by key (see {@link #search(CharSequence, Set)})
+   *
+   * @param key      searchable key for the prefix tree
+   * @param cacheIds the cache ids of the entry keys
+   * @return amount of the values of the caches the key is a prefix of
+   */
+  int count(CharSequence key, Set<?> cacheIds) {
+    if (key.length() < minSearchableKeyLength)
+      return 0;
+
+    Segments<K> current = segments;
+    if (!terminalPostings && current.frozen == null) {
+      // the counts of the containers are taken without decoding the ids
+      TrieNode<K> lastNode = searchLastNode(current.root, key);
+      PostingList values = lastNode != null ? lastNode.getValues() : null;
+      return values != null ? values.size(current.dictionary.getChunks(cacheIds)) : 0;
+    }
+
+    Set<EntryKey> set = search(key, cacheIds);
+    return set != null ? set.size() : 0;
+  }
+
+  /**
+   * Pass the entry keys of some chunks of ids of the values the key of the last node is a prefix of to a consumer,
+   * an entry key of multiple nodes of the subtree may be passed multiple times
+   *
+   * @param lastNode the last node of the searchable key or null
+   * @param chunks   the high bits of the ids
+   * @param consumer consumer of the entry keys
+   */
+  private void forEachValue(TrieNode<K> lastNode, BitSet chunks, Consumer<EntryKey> consumer) {
+    if (lastNode == null || chunks.isEmpty())
+      return;
+
+    if (!terminalPostings) {
+      PostingList values = lastNode.getValues();
+      if (values != null) {
+        values.forEach(chunks, consumer);
+      }
+      return;
+    }
+
+    ArrayDeque<TrieNode<K>> stack = new ArrayDeque<>();
+    stack.push(lastNode);
+    while (!stack.isEmpty()) {
+      TrieNode<K> node = stack.pop();
+      PostingList values = node.getValues();
+      if (values != null) {
+        values.forEach(chunks, consumer);
+      }
+      TrieNode<K>[] children = node.getChildren();
+      if (children != null) {
+        for (TrieNode<K> child : children) {
+          stack.push(child);
+        }
+      }
+    }
+  }
+
+  /**
+   * Combine the entry keys of the frozen segment with the ones of the mutable nodes
+   *
+   * @param current    - the segments
+   * @param frozenNode - the last node of the searchable key in the frozen segment or -1
+   * @param values     - entry keys of the mutable nodes or null
+   * @return entry keys or null
+   */
+  private Set<EntryKey> getValues(Segments<K> current, int frozenNode, Set<EntryKey> values) {
+    if (frozenNode < 0)
+      return values;
+
+    Set<EntryKey> set = values != null ? new HashSet<>(values) : new HashSet<>();
+    current.frozen.iterator(frozenNode, current.tombstones).forEachRemaining(set::add);
+    return set.isEmpty() ? null : set;
+  }
+
+  /**
+   * Get the entry keys of the values the key of the last node is a prefix of
+   *
+   * @param lastNode the last node of the searchable key or null
+   * @return entry keys or null
+   */
+  private Set<EntryKey> getValues(TrieNode<K> lastNode) {
+    if (lastNode == null)
+      return null;
+
+    if (!terminalPostings)
+      return lastNode.getValues();
+
+    Set<EntryKey> set = new HashSet<>();
+    new SubtreeIterator<>(lastNode).forEachRemaining(set::add);
+    return set.isEmpty() ? null : set;
+  }
+
+  /**
+   * Iterate the entry keys by key lazily: every entry key is visited once, and the entry keys which aren't
+   * iterated are not collected at all
+   *
+   * @param key searchable key for the prefix tree
+   * @return iterator of entry keys of the values the key is a prefix of
+   */
+  Iterator<EntryKey> iterator(CharSequence key) {
+    if (key.length() < minSearchableKeyLength)
+      return Collections.emptyIterator();
+
+    Segments<K> current = segments;
+    Iterator<EntryKey> iterator = iterator(searchLastNode(current.root, key));
+    if (current.frozen == null)
+      return iterator;
+
+    // the entry keys of the mutable nodes are masked in the frozen segment, so there are no duplicates
+    int frozenNode = current.frozen.searchLastNode(key);
+    if (frozenNode < 0)
+      return iterator;
+
+    return new ConcatIterator(current.frozen.iterator(frozenNode, current.tombstones), iterator);
+  }
+
+  private Iterator<EntryKey> iterator(TrieNode<K> lastNode) {
+    if (lastNode == null)
+      return Collections.emptyIterator();
+
+    if (!terminalPostings)
+      return iterator(lastNode.getValues());
+
+    return new SubtreeIterator<>(lastNode);
+  }
+
+  /**
+   * Visit the entry keys by key until the visitor asks to stop
+   *
+   * @param key     searchable key for the prefix tree
+   * @param visitor the visitor of entry keys, returns false to stop visiting
+   * @return false if the visitor stopped visiting
+   */
+  boolean forEach(CharSequence key, Predicate<EntryKey> visitor) {
+    Iterator<EntryKey> iterator = iterator(key);
+    while (iterator.hasNext()) {
+      if (!visitor.test(iterator.next()))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Count the entry keys by key
+   *
+   * @param key searchable key for the prefix tree
+   * @return amount of the values the key is a prefix of
+   */
+  int count(CharSequence key) {
+    if (key.length() < minSearchableKeyLength)
+      return 0;
+
+    Segments<K> current = segments;
+    int count = count(searchLastNode(current.root, key));
+    if (current.frozen == null)
+      return count;
+
+    int frozenNode = current.frozen.searchLastNode(key);
+    return frozenNode < 0 ? count : count + current.frozen.count(frozenNode, current.tombstones);
+  }
+
+  /**
+   * Count the entry keys by a key given as a range of a char array, no string is created
+   *
+   * @param chars  chars of the searchable key
+   * @param offset offset of the key in the array
+   * @param length key length
+   * @return amount of the values the key is a prefix of
+   */
+  int count(char[] chars, int offset, int length) {
+    if (length < minSearchableKeyLength)
+      return 0;
+
+    Segments<K> current = segments;
+    int count = count(searchLastNode(current.root, chars, offset, length));
+    if (current.frozen == null)
+      return count;
+
+    int frozenNode = current.frozen.searchLastNode(chars, offset, length);
+    return frozenNode < 0 ? count : count + current.frozen.count(frozenNode, current.tombstones);
+  }
+
+  private int count(TrieNode<K> lastNode) {
+    if (lastNode == null)
+      return 0;
+
+    if (!terminalPostings) {
+      Set<EntryKey> values = lastNode.getValues();
+      return values != null ? values.size() : 0;
+    }
+
+    int count = 0;
+    for (Iterator<EntryKey> iterator = new SubtreeIterator<>(lastNode); iterator.hasNext(); iterator.next()) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Search the entry keys by key with bounded edit distance: the key may differ from a prefix of the value keys by
+   * up to maxEdits inserted, deleted or substituted chars.
+   * The trie is walked depth-first keeping a row of the Levenshtein matrix per depth, and a branch is cut as soon
+   * as every cell of its row exceeds the budget
+   *
+   * @param key      searchable key for the prefix tree
+   * @param maxEdits max edit distance
+   * @return the distance by entry key (the min one over the prefixes of the value keys) or null
+   */
+  Map<EntryKey, Integer> searchFuzzy(CharSequence key, int maxEdits) {
+    int length = key.length();
+    if (length < minSearchableKeyLength)
+      return null;
+
+    // a row is cut when the depth exceeds the key length by more than maxEdits, so the rows are allocated once
+    int[][] rows = new int[length + maxEdits + 2][length + 1];
+    for (int j = 0; j <= length; j++) {
+      rows[0][j] = j;
+    }
+
+    Map<EntryKey, Integer> distances = new HashMap<>();
+    Segments<K> current = segments;
+    TrieNode<K>[] children = current.root.getChildren();
+    if (children != null) {
+      for (TrieNode<K> child : children) {
+        searchFuzzy(child, key, rows, 0, maxEdits, distances);
+      }
+    }
+    if (current.frozen != null) {
+      current.frozen.searchFuzzy(current.frozen.getRoot(), key, rows, 0, maxEdits, minSearchableKeyLength,
+              current.tombstones, distances);
+    }
+    return distances.isEmpty() ? null : distances;
+  }
+
+  /**
+   * Fill the rows of the node label chars, collect the entry keys of the node if its label is close enough
+   * to the key and go on with the children if they may be closer
+   *
+   * @param node      - the node
+   * @param key       - trie key
+   * @param rows      - rows of the Levenshtein matrix by depth
+   * @param depth     - depth of the parent node (the row of the parent is filled)
+   * @param maxEdits  - max edit distance
+   * @param distances - the distance by entry key
+   */
+  private void searchFuzzy(TrieNode<K> node, CharSequence key, int[][] rows, int depth, int maxEdits,
+                           Map<EntryKey, Integer> distances) {
+    int length = key.length();
+    char[] tail = node.getTail();
+    int labelLength = node.getLabelLength();
+
+    // the best distance of the key to the prefixes ending within the label, every prefix leads to the same values
+    int best = Integer.MAX_VALUE;
+    int rowMin = 0;
+    for (int i = 0; i < labelLength; i++) {
+      rowMin = fillRow(rows[depth], rows[++depth], key, i == 0 ? node.getChar() : tail[i - 1]);
+      if (depth >= minSearchableKeyLength) {
+        best = Math.min(best, rows[depth][length]);
+      }
+      if (rowMin > maxEdits)
+        break;
+    }
+
+    if (best <= maxEdits) {
+      int distance = best;
+      Iterator<EntryKey> values = terminalPostings ? new SubtreeIterator<>(node) : iterator(node.getValues());
+      values.forEachRemaining(value -> distances.merge(value, distance, Math::min));
+    }
+
+    // no cell of the rows below is less than the min of this row
+    if (rowMin > maxEdits || (depth >= minSearchableKeyLength && rows[depth][length] == rowMin))
+      return;
+
+    TrieNode<K>[] children = node.getChildren();
+    if (children != null) {
+      for (TrieNode<K> child : children) {
+        searchFuzzy(child, key, rows, depth, maxEdits, distances);
+      }
+    }
+  }
+
+  /**
+   * Fill the row of the Levenshtein matrix following a char of the trie key
+   *
+   * @param row  - the row of the previous char
+   * @param next - the row to fill
+   * @param key  - the searched key
+   * @param c    - the char of the trie key
+   * @return min of the row
+   */
+  static int fillRow(int[] row, int[] next, CharSequence key, char c) {
+    next[0] = row[0] + 1;
+    int rowMin = next[0];
+    for (int j = 1; j < next.length; j++) {
+      int cost = key.charAt(j - 1) == c ? 0 : 1;
+      next[j] = Math.min(Math.min(next[j - 1] + 1, row[j] + 1), row[j - 1] + cost);
+      rowMin = Math.min(rowMin, next[j]);
+    }
+    return rowMin;
+  }
+
+  private static Iterator<EntryKey> iterator(Set<EntryKey> values) {
+    return values != null ? values.iterator() : Collections.emptyIterator();
+  }
+
+  /**
+   * Get a write lock of the subtree the key belongs to (subtrees are striped by the first char of the key)
+   *
+   * @param firstChar the first char of the searchable key
+   * @return the lock object
+   */
+  private Object getWriteLock(char firstChar) {
+    return writeLocks[firstChar & (writeLocks.length - 1)];
+  }
+
+  /**
+   * Search the last node in the trie based on the sequence of chars (key)
+   *
+   * @param root - root of the mutable nodes
+   * @param key  - trie key
+   * @return last node of the sequence in the trie (the key may end in the middle of its label) or null
+   */
+  private TrieNode<K> searchLastNode(TrieNode<K> root, CharSequence key) {
+    return searchLastNode(root, key, 0, key.length());
+  }
+
+  /**
+   * Search the last node in the trie based on a range of a char sequence
+   *
+   * @param root - root of the mutable nodes
+   * @param key  - the char sequence containing the trie key
+   * @param from - offset of the key in the sequence
+   * @param to   - end of the key in the sequence (exclusive)
+   * @return last node of the sequence in the trie (the key may end in the middle of its label) or null
+   */
+  private TrieNode<K> searchLastNode(TrieNode<K> root, CharSequence key, int from, int to) {
+    TrieNode<K> node = root;
+    int offset = from;
+    while (offset < to) {
+      TrieNode<K> nextNode = node.getChild(key.charAt(offset));
+      if (nextNode == null)
+        return null;
+
+      int matched = match(nextNode, key, offset, to);
+      if (matched < nextNode.getLabelLength() && offset + matched < to)
+        return null;
+
+      offset += nextNode.getLabelLength();
+      node = nextNode;
+    }
+    return node;
+  }
+
+  /**
+   * Search the last node in the trie based on a range of a char array
+   *
+   * @param root   - root of the mutable nodes
+   * @param chars  - chars of the trie key
+   * @param from   - offset of the key in the array
+   * @param length - key length
+   * @return last node of the sequence in the trie (the key may end in the middle of its label) or null
+   */
+  private TrieNode<K> searchLastNode(TrieNode<K> root, char[] chars, int from, int length) {
+    int to = from + length;
+    TrieNode<K> node = root;
+    int offset = from;
+    while (offset < to) {
+      TrieNode<K> nextNode = node.getChild(chars[offset]);
+      if (nextNode == null)
+        return null;
+
+      int matched = match(nextNode, chars, offset, to);
+      if (matched < nextNode.getLabelLength() && offset + matched < to)
+        return null;
+
+      offset += nextNode.getLabelLength();
+      node = nextNode;
+    }
+    return node;
+  }
+
+  /**
+   * Add a sequence of chars (initial key) to the trie.
+   * The value is encoded to an id once, and the references to the id are counted by the postings added
+   *
+   * @param current - the segments with the mutable nodes
+   * @param key     - the string containing the trie key
+   * @param from    - offset of the key in the string
+   * @param to      - end of the key in the string (exclusive)
+   * @param value   - the value related to the key
+   */
+  private void add(Segments<K> current, String key, int from, int to, EntryKey value) {
+    // a key shorter than the min searchable length is never found, so no need to keep its path compressed nodes
+    if (pathCompression && to - from < minSearchableKeyLength)
+      return;
+
+    PostingDictionary dictionary = current.dictionary;
+    int id = -1;
+    int added = 0;
+    TrieNode<K> node = current.root;
+    int offset = from;
+    while (offset < to) {
+      TrieNode<K> nextNode = node.getChild(key.charAt(offset));
+
+      if (nextNode == null) {
+        nextNode = newNode(key, offset, pathCompression ? to : offset + 1);
+        putChild(node, nextNode);
+        nodeSize.incrementAndGet();
+      } else {
+        int matched = match(nextNode, key, offset, to);
+        if (matched < nextNode.getLabelLength()) {
+          nextNode = split(node, nextNode, offset - from, matched);
+        }
+      }
+
+      offset += nextNode.getLabelLength();
+      node = nextNode;
+
+      if (offset - from >= minSearchableKeyLength && (!terminalPostings || offset == to)) {
+        if (id < 0) {
+          // the reference keeps the id until the postings are counted
+          id = dictionary.acquire(value, 1);
+        }
+        if (node.getValues() == null) {
+          node.setValues(new PostingList(dictionary));
+        }
+        if (node.getValues().add(id)) {
+          added++;
+        }
+      }
+    }
+
+    if (id >= 0 && added != 1) {
+      if (added == 0) {
+        dictionary.release(id, 1);
+      } else {
+        dictionary.retain(id, added - 1);
+      }
+    }
+  }
+
+  /**
+   * Remove a value from the nodes of the char sequence (trie key), remove the nodes which become empty and
+   * collapse the nodes which are left with a single child in the path compression mode.
+   * The path is walked down removing the value and then back up (deepest node first) pruning the nodes,
+   * so the depth of the trie is not limited by the stack
+   *
+   * @param current - the segments with the mutable nodes
+   * @param key     - the string containing the trie key
+   * @param from    - offset of the key in the string
+   * @param to      - end of the key in the string (exclusive)
+   * @param value   - the value related to the key
+   */
+  @SuppressWarnings("unchecked")
+  private void removeValue(Segments<K> current, String key, int from, int to, EntryKey value) {
+    // an entry key without an id has no postings. The id can't be reused meanwhile by another entry key in this
+    // subtree, which is changed only under the lock held
+    PostingDictionary dictionary = current.dictionary;
+    int id = dictionary.idOf(value);
+    if (id < 0)
+      return;
+
+    TrieNode<K>[] path = new TrieNode[to - from + 1];
+    path[0] = current.root;
+    int depth = 0;
+    int removed = 0;
+
+    int offset = from;
+    while (offset < to) {
+      TrieNode<K> node = path[depth].getChild(key.charAt(offset));
+      if (node == null)
+        break;
+
+      path[++depth] = node;
+      offset += node.getLabelLength();
+
+      // the key ending in the middle of the label doesn't own the values of the node
+      if (offset > to)
+        break;
+
+      PostingList values = node.getValues();
+      if (values != null && (!terminalPostings || offset == to) && values.remove(id)) {
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      dictionary.release(id, removed);
+    }
+
+    for (; depth > 0; depth--) {
+      TrieNode<K> node = path[depth];
+      TrieNode<K> parent = path[depth - 1];
+      if (node.isEmpty()) {
+        removeChild(parent, node);
+        nodeSize.decrementAndGet();
+      } else if (pathCompression) {
+        merge(parent, node);
+      }
+    }
+  }
+
+  /**
+   * Split a node label, so the first part of the label becomes a separate node
+   *
+   * @param parent - parent of the node
+   * @param node   - the node to split
+   * @param offset - offset of the node label in the key
+   * @param at     - length of the first part of the label
+   * @return the node of the first part of the label
+   */
+  private TrieNode<K> split(TrieNode<K> parent, TrieNode<K> node, int offset, int at) {
+    String label = getLabel(node);
+
+    TrieNode<K> lower = newNode(label, at, label.length());
+    lower.setChildren(node.getChildren());
+    lower.setValues(node.getValues());
+
+    TrieNode<K> upper = newNode(label, 0, at);
+    upper.putChild(lower);
+    if (!terminalPostings && offset + at >= minSearchableKeyLength && node.getValues() != null) {
+      upper.setValues(node.getValues().copy());
+    }
+
+    replaceChild(parent, upper);
+    nodeSize.incrementAndGet();
+    return upper;
+  }
+
+  /**
+   * Collapse a node with its only child if no key ends at the node
+   *
+   * @param parent - parent of the node
+   * @param node   - the node
+   */
+  private void merge(TrieNode<K> parent, TrieNode<K> node) {
+    TrieNode<K>[] children = node.getChildren();
+    if (children == null || children.length != 1)
+      return;
+
+    TrieNode<K> child = children[0];
+    PostingList values = node.getValues();
+    PostingList childValues = child.getValues();
+
+    if (terminalPostings) {
+      if (values != null && !values.isEmpty())
+        return;
+    } else if (values != null && (childValues == null || values.size() != childValues.size())) {
+      // entry keys of the child are a subset of the node's ones, so the same size means that no key ends at the node
+      return;
+    }
+
+    String label = getLabel(node) + getLabel(child);
+    TrieNode<K> merged = newNode(label, 0, label.length());
+    merged.setChildren(child.getChildren());
+    merged.setValues(childValues);
+
+    replaceChild(parent, merged);
+    nodeSize.decrementAndGet();
+    if (values != null) {
+      // the child keeps the same ids, so releasing the references of the node frees none of them
+      values.releaseAll();
+    }
+  }
+
+  private void putChild(TrieNode<K> parent, TrieNode<K> child) {
+    if (parent == segments.root) {
+      // the root is shared by all the write lock stripes
+      synchronized (parent) {
+        parent.putChild(child);
+      }
+    } else {
+      parent.putChild(child);
+    }
+  }
+
+  private void replaceChild(TrieNode<K> parent, TrieNode<K> child) {
+    if (parent == segments.root) {
+      synchronized (parent) {
+        parent.replaceChild(child);
+      }
+    } else {
+      parent.replaceChild(child);
+    }
+  }
+
+  private void removeChild(TrieNode<K> parent, TrieNode<K> child) {
+    if (parent == segments.root) {
+      synchronized (parent) {
+        parent.removeChild(child.getChar());
+      }
+    } else {
+      parent.removeChild(child.getChar());
+    }
+  }
+
+  /**
+   * Count the chars of the node label matching the key (the first char is matched by the parent)
+   *
+   * @param node   - the node
+   * @param key    - trie key
+   * @param offset - offset of the node label in the key
+   * @param length - key length
+   * @return amount of matched chars
+   */
+  private static int match(TrieNode<?> node, CharSequence key, int offset, int length) {
+    char[] tail = node.getTail();
+    if (tail == null)
+      return 1;
+
+    int matched = 1;
+    while (matched <= tail.length && offset + matched < length && key.charAt(offset + matched) == tail[matched - 1]) {
+      matched++;
+    }
+    return matched;
+  }
+
+  private static int match(TrieNode<?> node, char[] chars, int offset, int to) {
+    char[] tail = node.getTail();
+    if (tail == null)
+      return 1;
+
+    int matched = 1;
+    while (matched <= tail.length && offset + matched < to && chars[offset + matched] == tail[matched - 1]) {
+      matched++;
+    }
+    return matched;
+  }
+
+  private static String getLabel(TrieNode<?> node) {
+    char[] tail = node.getTail();
+    return tail == null ? String.valueOf(node.getChar()) : node.getChar() + new String(tail);
+  }
+
+  private static <K> TrieNode<K> newNode(String key, int from, int to) {
+    if (to - from == 1)
+      return new TrieNode<>(key.charAt(from));
+
+    char[] tail = new char[to - from - 1];
+    key.getChars(from + 1, to, tail, 0);
+    return new RadixTrieNode<>(key.charAt(from), tail);
+  }
+
+  /**
+   * Action taken holding all the write locks
+   */
+  private interface WriteAction<E extends Exception> {
+    void run() throws E;
+  }
+
+  /**
+   * Mutable nodes with the dictionary of their posting lists, the frozen segment and the entry keys masked in
+   * the segment, replaced at once by freezing
+   */
+  private static final class Segments<K> {
+    private final TrieNode<K> root;
+    private final FrozenTrieSegment frozen;
+    private final Set<EntryKey> tombstones;
+    private final PostingDictionary dictionary;
+
+    Segments(TrieNode<K> root, FrozenTrieSegment frozen, Set<EntryKey> tombstones, PostingDictionary dictionary) {
+      this.root = root;
+      this.frozen = frozen;
+      this.tombstones = tombstones;
+      this.dictionary = dictionary;
+    }
+  }
+
+  /**
+   * Iterator over the entry keys of the frozen segment followed by the ones of the mutable nodes
+   */
+  private static class ConcatIterator implements Iterator<EntryKey> {
+    private final Iterator<EntryKey> second;
+    private Iterator<EntryKey> current;
+
+    ConcatIterator(Iterator<EntryKey> first, Iterator<EntryKey> second) {
+      this.current = first;
+      this.second = second;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (current.hasNext())
+        return true;
+
+      current = second;
+      return current.hasNext();
+    }
+
+    @Override
+    public EntryKey next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+
+      return current.next();
+    }
+  }
+
+  /**
+   * Depth-first iterator over the entry keys of a subtree, a value with multiple keys may end at multiple nodes
+   * of the subtree, so its entry key is returned only the first time
+   */
+  private static class SubtreeIterator<K> implements Iterator<EntryKey> {
+    private final Deque<TrieNode<K>> stack = new ArrayDeque<>();
+    private final Set<EntryKey> visited = new HashSet<>();
+    private Iterator<EntryKey> values = Collections.emptyIterator();
+    private EntryKey next;
+
+    SubtreeIterator(TrieNode<K> node) {
+      stack.push(node);
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null) {
+        if (values.hasNext()) {
+          EntryKey value = values.next();
+          if (visited.add(value)) {
+            next = value;
+          }
+        } else if (stack.isEmpty()) {
+          return false;
+        } else {
+          TrieNode<K> node = stack.pop();
+          Set<EntryKey> nodeValues = node.getValues();
+          values = nodeValues != null ? nodeValues.iterator() : Collections.emptyIterator();
+          TrieNode<K>[] children = node.getChildren();
+          if (children != null) {
+            for (TrieNode<K> child : children) {
+              stack.push(child);
+            }
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public EntryKey next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+
+      EntryKey value = next;
+      next = null;
+      return value;
+    }
+  }
+}
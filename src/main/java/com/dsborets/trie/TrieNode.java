@@ -1,41 +1,163 @@
 package com.dsborets.trie;
 
-import java.util.HashSet;
-import java.util.Map;
-
 /**
- * Trie node contains a map of sequences, link to the parent node ad a list of
- * entry keys {@link EntryKey}
+ * Trie node contains the char of the sequence leading to the node, children sorted by their chars and a posting
+ * list of entry keys {@link EntryKey} encoded to ids ({@link PostingList}).
+ * Children are kept in a plain array sized to the actual fanout (usually 1-3) instead of a map, so a lookup is a
+ * binary search over chars without boxing or hashing. The array is replaced on every change (copy-on-write),
+ * so the node can be read without locking while a writer holding the subtree lock modifies it.
+ * <p>
+ * A plain node is labeled by a single char, a path compressed node ({@link RadixTrieNode}) continues the label with
+ * a tail of chars.
  *
  * @author dsborets on 10/1/16
  */
 class TrieNode<V> {
-  private TrieNode<V> parent;
-  private Map<Character, TrieNode<V>> sequences;
-  private HashSet<EntryKey> values;
+  private final char ch;
+  private volatile TrieNode<V>[] children;
+  private volatile PostingList values;
+
+  TrieNode(char ch) {
+    this.ch = ch;
+  }
+
+  char getChar() {
+    return ch;
+  }
+
+  /**
+   * Get the chars of the label following the first char
+   *
+   * @return the tail of the label or null if the node is labeled by a single char
+   */
+  char[] getTail() {
+    return null;
+  }
+
+  /**
+   * Get the length of the label (amount of chars of the key the node stands for)
+   *
+   * @return the length of the label
+   */
+  int getLabelLength() {
+    return 1;
+  }
 
-  TrieNode<V> getParent() {
-    return parent;
+  /**
+   * Get a child node by char
+   *
+   * @param c - the char of the child
+   * @return the child node or null
+   */
+  TrieNode<V> getChild(char c) {
+    TrieNode<V>[] nodes = children;
+    if (nodes == null)
+      return null;
+    int idx = indexOf(nodes, c);
+    return idx >= 0 ? nodes[idx] : null;
   }
 
-  void setParent(TrieNode<V> parent) {
-    this.parent = parent;
+  /**
+   * Add a child node (the caller must hold the write lock of the subtree)
+   *
+   * @param child - the child node, a child with the same char must not exist
+   */
+  @SuppressWarnings("unchecked")
+  void putChild(TrieNode<V> child) {
+    TrieNode<V>[] nodes = children;
+    if (nodes == null) {
+      nodes = new TrieNode[]{child};
+    } else {
+      int idx = -(indexOf(nodes, child.ch) + 1);
+      TrieNode<V>[] copy = new TrieNode[nodes.length + 1];
+      System.arraycopy(nodes, 0, copy, 0, idx);
+      copy[idx] = child;
+      System.arraycopy(nodes, idx, copy, idx + 1, nodes.length - idx);
+      nodes = copy;
+    }
+    children = nodes;
   }
 
-  Map<Character, TrieNode<V>> getSequences() {
-    return sequences;
+  /**
+   * Remove a child node by char (the caller must hold the write lock of the subtree)
+   *
+   * @param c - the char of the child
+   */
+  @SuppressWarnings("unchecked")
+  void removeChild(char c) {
+    TrieNode<V>[] nodes = children;
+    if (nodes == null)
+      return;
+    int idx = indexOf(nodes, c);
+    if (idx < 0)
+      return;
+    if (nodes.length == 1) {
+      children = null;
+    } else {
+      TrieNode<V>[] copy = new TrieNode[nodes.length - 1];
+      System.arraycopy(nodes, 0, copy, 0, idx);
+      System.arraycopy(nodes, idx + 1, copy, idx, nodes.length - idx - 1);
+      children = copy;
+    }
   }
 
-  void setSequences(Map<Character, TrieNode<V>> sequences) {
-    this.sequences = sequences;
+  /**
+   * Replace a child node by a node with the same char (the caller must hold the write lock of the subtree)
+   *
+   * @param child - the new child node
+   */
+  void replaceChild(TrieNode<V> child) {
+    TrieNode<V>[] nodes = children;
+    int idx = indexOf(nodes, child.ch);
+    TrieNode<V>[] copy = nodes.clone();
+    copy[idx] = child;
+    children = copy;
   }
 
-  HashSet<EntryKey> getValues() {
+  /**
+   * Get the children sorted by char
+   *
+   * @return the children or null if the node is a leaf (the array must not be modified)
+   */
+  TrieNode<V>[] getChildren() {
+    return children;
+  }
+
+  void setChildren(TrieNode<V>[] children) {
+    this.children = children;
+  }
+
+  PostingList getValues() {
     return values;
   }
 
-  void setValues(HashSet<EntryKey> values) {
+  void setValues(PostingList values) {
     this.values = values;
   }
-}
 
+  /**
+   * Check if the node has neither children nor entry keys and can be removed from the trie
+   *
+   * @return true if the node is empty
+   */
+  boolean isEmpty() {
+    PostingList list = values;
+    return children == null && (list == null || list.isEmpty());
+  }
+
+  private static int indexOf(TrieNode<?>[] nodes, char c) {
+    int low = 0;
+    int high = nodes.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char midChar = nodes[mid].ch;
+      if (midChar < c)
+        low = mid + 1;
+      else if (midChar > c)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -(low + 1);
+  }
+}
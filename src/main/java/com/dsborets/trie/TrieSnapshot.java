@@ -0,0 +1,364 @@
+package com.dsborets.trie;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary snapshot of the trie index: the structure of the nodes and their entry keys {@link EntryKey}.
+ * <p>
+ * Every distinct entry key is written once to a table, and the nodes refer to the entry keys by position in the
+ * table, so the entry keys repeated by every node of a key path take 4 bytes each. The nodes are written in
+ * depth-first pre-order, both ways the nodes are walked with an explicit stack, so the depth of the trie is not
+ * limited by the stack:
+ * <pre>
+ * header:    magic, version, min searchable key length, path compression, terminal postings,
+ *            amount of caches, (cache id, amount of entries) per cache
+ * table:     amount of entry keys, (cache id, key) per entry key
+ * node:      char, tail length, tail chars, amount of entry keys (-1 if none), entry key positions,
+ *            amount of children, children
+ * </pre>
+ * The snapshot is read from a memory mapped file, so the restore is bound by the file I/O only.
+ */
+class TrieSnapshot<I, K> {
+  private static final int MAGIC = 0x54524945;
+
+  private static final int VERSION = 2;
+
+  private final SnapshotCodec<I> cacheIdCodec;
+
+  private final SnapshotCodec<K> keyCodec;
+
+  TrieSnapshot(SnapshotCodec<I> cacheIdCodec, SnapshotCodec<K> keyCodec) {
+    this.cacheIdCodec = cacheIdCodec;
+    this.keyCodec = keyCodec;
+  }
+
+  /**
+   * The trie index read from a snapshot
+   */
+  static class Content<K> {
+    final int nodeSize;
+    final TrieNode<K>[] children;
+    final Map<Object, Long> entryCounts;
+    final PostingDictionary dictionary;
+    final EntryKey[] entryKeys;
+
+    Content(int nodeSize, TrieNode<K>[] children, Map<Object, Long> entryCounts, PostingDictionary dictionary,
+            EntryKey[] entryKeys) {
+      this.nodeSize = nodeSize;
+      this.children = children;
+      this.entryCounts = entryCounts;
+      this.dictionary = dictionary;
+      this.entryKeys = entryKeys;
+    }
+  }
+
+  /**
+   * Write the trie index to a file, the file is replaced at once when the snapshot is complete
+   *
+   * @param index       - trie index
+   * @param entryCounts - amount of the entries by cache id
+   * @param file        - snapshot file
+   * @throws IOException in case of an I/O error
+   */
+  void write(TrieIndex<K> index, Map<I, Long> entryCounts, Path file) throws IOException {
+    Map<EntryKey, Integer> positions = new LinkedHashMap<>();
+    Deque<TrieNode<K>> stack = new ArrayDeque<>();
+    stack.push(index.getRoot());
+    while (!stack.isEmpty()) {
+      TrieNode<K> node = stack.pop();
+      Set<EntryKey> values = node.getValues();
+      if (values != null) {
+        values.forEach(value -> positions.putIfAbsent(value, positions.size()));
+      }
+      pushChildren(stack, node);
+    }
+
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(index.getMinSearchableKeyLength());
+      out.writeBoolean(index.isPathCompression());
+      out.writeBoolean(index.isTerminalPostings());
+      out.writeInt(entryCounts.size());
+      for (Map.Entry<I, Long> entryCount : entryCounts.entrySet()) {
+        cacheIdCodec.write(out, entryCount.getKey());
+        out.writeLong(entryCount.getValue());
+      }
+
+      out.writeInt(positions.size());
+      for (EntryKey<I, K> entryKey : positions.keySet()) {
+        cacheIdCodec.write(out, entryKey.getCacheId());
+        keyCodec.write(out, entryKey.getKey());
+      }
+
+      TrieNode<K>[] children = index.getRoot().getChildren();
+      out.writeInt(children != null ? children.length : 0);
+      if (children != null) {
+        // the children are pushed in reverse, so they're written in order
+        stack.clear();
+        pushChildrenReversed(stack, index.getRoot());
+        while (!stack.isEmpty()) {
+          TrieNode<K> node = stack.pop();
+          writeNode(out, node, positions);
+          pushChildrenReversed(stack, node);
+        }
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read the trie index from a file written by {@link #write}
+   *
+   * @param index - the trie index the snapshot is read for (its settings must be the same as the written ones)
+   * @param file  - snapshot file
+   * @return the content of the snapshot
+   * @throws IOException in case of an I/O error
+   */
+  Content<K> read(TrieIndex<K> index, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      SnapshotInput in = new ByteBufferSnapshotInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+
+      if (in.readInt() != MAGIC)
+        throw new RuntimeException(String.format("The file %s is not a trie snapshot", file));
+      int version = in.readInt();
+      if (version != VERSION)
+        throw new RuntimeException(String.format("Unsupported version %d of the trie snapshot", version));
+      if (in.readInt() != index.getMinSearchableKeyLength() || in.readBoolean() != index.isPathCompression()
+              || in.readBoolean() != index.isTerminalPostings())
+        throw new RuntimeException("The trie snapshot is written by a trie with different settings");
+
+      Map<Object, Long> entryCounts = new HashMap<>();
+      int caches = in.readInt();
+      for (int i = 0; i < caches; i++) {
+        entryCounts.put(cacheIdCodec.read(in), in.readLong());
+      }
+
+      // the positions of the entry keys in the table are encoded to the ids of a new dictionary
+      PostingDictionary dictionary = new PostingDictionary();
+      EntryKey[] entryKeys = new EntryKey[in.readInt()];
+      int[] ids = new int[entryKeys.length];
+      for (int i = 0; i < ids.length; i++) {
+        entryKeys[i] = new EntryKey<>(cacheIdCodec.read(in), keyCodec.read(in));
+        ids[i] = dictionary.acquire(entryKeys[i], 0);
+      }
+
+      int[] nodeSize = new int[1];
+      int[] refs = new int[dictionary.getIdLimit()];
+      TrieNode<K>[] children = readNodes(in, dictionary, ids, refs, nodeSize);
+      for (int id = 0; id < refs.length; id++) {
+        dictionary.retain(id, refs[id]);
+      }
+      return new Content<>(nodeSize[0], children, entryCounts, dictionary, entryKeys);
+    }
+  }
+
+  private void writeNode(DataOutput out, TrieNode<K> node, Map<EntryKey, Integer> positions) throws IOException {
+    out.writeChar(node.getChar());
+    char[] tail = node.getTail();
+    out.writeInt(tail != null ? tail.length : 0);
+    if (tail != null) {
+      for (char c : tail) {
+        out.writeChar(c);
+      }
+    }
+
+    Set<EntryKey> values = node.getValues();
+    if (values == null) {
+      out.writeInt(-1);
+    } else {
+      // the set may be changed by a concurrent writer, so the entry keys added after the table is written are skipped
+      int[] valuePositions = new int[values.size()];
+      int length = 0;
+      for (EntryKey value : values) {
+        Integer position = positions.get(value);
+        if (position != null) {
+          if (length == valuePositions.length) {
+            valuePositions = Arrays.copyOf(valuePositions, length * 2 + 1);
+          }
+          valuePositions[length++] = position;
+        }
+      }
+      out.writeInt(length);
+      for (int i = 0; i < length; i++) {
+        out.writeInt(valuePositions[i]);
+      }
+    }
+
+    TrieNode<K>[] children = node.getChildren();
+    out.writeInt(children != null ? children.length : 0);
+  }
+
+  /**
+   * Read the nodes written in pre-order, every node is added to the children array of its parent taken from
+   * the stack, and the children array of the node is pushed until it's filled
+   *
+   * @return the children of the root or null if there are none
+   */
+  @SuppressWarnings("unchecked")
+  private TrieNode<K>[] readNodes(SnapshotInput in, PostingDictionary dictionary, int[] ids, int[] refs,
+                                  int[] nodeSize) {
+    int rootChildrenLength = in.readInt();
+    if (rootChildrenLength == 0)
+      return null;
+
+    TrieNode<K>[] rootChildren = new TrieNode[rootChildrenLength];
+    Deque<PendingChildren<K>> stack = new ArrayDeque<>();
+    stack.push(new PendingChildren<>(rootChildren));
+    while (!stack.isEmpty()) {
+      PendingChildren<K> pending = stack.peek();
+      if (pending.filled == pending.children.length) {
+        stack.pop();
+        continue;
+      }
+
+      TrieNode<K> node = readNode(in, dictionary, ids, refs, nodeSize);
+      pending.children[pending.filled++] = node;
+      int childrenLength = in.readInt();
+      if (childrenLength > 0) {
+        TrieNode<K>[] children = new TrieNode[childrenLength];
+        node.setChildren(children);
+        stack.push(new PendingChildren<>(children));
+      }
+    }
+    return rootChildren;
+  }
+
+  private TrieNode<K> readNode(SnapshotInput in, PostingDictionary dictionary, int[] ids, int[] refs,
+                               int[] nodeSize) {
+    char ch = in.readChar();
+    int tailLength = in.readInt();
+    TrieNode<K> node;
+    if (tailLength == 0) {
+      node = new TrieNode<>(ch);
+    } else {
+      char[] tail = new char[tailLength];
+      for (int i = 0; i < tailLength; i++) {
+        tail[i] = in.readChar();
+      }
+      node = new RadixTrieNode<>(ch, tail);
+    }
+    nodeSize[0]++;
+
+    int valuesLength = in.readInt();
+    if (valuesLength >= 0) {
+      int[] valueIds = new int[valuesLength];
+      for (int i = 0; i < valuesLength; i++) {
+        valueIds[i] = ids[in.readInt()];
+      }
+      PostingList values = PostingList.of(dictionary, valueIds, valuesLength);
+      values.forEachId(id -> refs[id]++);
+      node.setValues(values);
+    }
+    return node;
+  }
+
+  private static <K> void pushChildren(Deque<TrieNode<K>> stack, TrieNode<K> node) {
+    TrieNode<K>[] children = node.getChildren();
+    if (children != null) {
+      for (TrieNode<K> child : children) {
+        stack.push(child);
+      }
+    }
+  }
+
+  private static <K> void pushChildrenReversed(Deque<TrieNode<K>> stack, TrieNode<K> node) {
+    TrieNode<K>[] children = node.getChildren();
+    if (children != null) {
+      for (int i = children.length - 1; i >= 0; i--) {
+        stack.push(children[i]);
+      }
+    }
+  }
+
+  /**
+   * The children array of a node read from a snapshot and amount of the children read so far
+   */
+  private static final class PendingChildren<K> {
+    private final TrieNode<K>[] children;
+    private int filled;
+
+    PendingChildren(TrieNode<K>[] children) {
+      this.children = children;
+    }
+  }
+
+  /**
+   * Input reading a byte buffer (a memory mapped file) directly, without copying it to a stream
+   */
+  private static class ByteBufferSnapshotInput implements SnapshotInput {
+    private final ByteBuffer buffer;
+
+    ByteBufferSnapshotInput(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public boolean readBoolean() {
+      return buffer.get() != 0;
+    }
+
+    @Override
+    public byte readByte() {
+      return buffer.get();
+    }
+
+    @Override
+    public void readFully(byte[] bytes) {
+      buffer.get(bytes);
+    }
+
+    @Override
+    public short readShort() {
+      return buffer.getShort();
+    }
+
+    @Override
+    public char readChar() {
+      return buffer.getChar();
+    }
+
+    @Override
+    public int readInt() {
+      return buffer.getInt();
+    }
+
+    @Override
+    public long readLong() {
+      return buffer.getLong();
+    }
+
+    @Override
+    public double readDouble() {
+      return buffer.getDouble();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+      // the length is decoded along with the bytes
+      int length = buffer.getShort(buffer.position()) & 0xffff;
+      byte[] bytes = new byte[2 + length];
+      buffer.get(bytes);
+      return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.dsborets.trie;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Statistics of a trie taken by {@link Trie#getStats()}.
+ * The search latencies, the loads and the evictions are recorded only if the trie is built with
+ * {@link TrieBuilder#recordStats()}, they are zero otherwise. The histograms are binary: the bucket i counts the
+ * values in [2^i, 2^(i+1))
+ */
+public final class TrieStats<I> {
+  private final long[] searchLatencies;
+  private final long loadCount;
+  private final long evictionCount;
+  private final Map<I, Long> entryCounts;
+  private final int nodeCount;
+  private final long[] postingSizes;
+  private final long estimatedBytes;
+
+  TrieStats(long[] searchLatencies, long loadCount, long evictionCount, Map<I, Long> entryCounts, int nodeCount,
+            long[] postingSizes, long estimatedBytes) {
+    this.searchLatencies = searchLatencies;
+    this.loadCount = loadCount;
+    this.evictionCount = evictionCount;
+    this.entryCounts = Collections.unmodifiableMap(entryCounts);
+    this.nodeCount = nodeCount;
+    this.postingSizes = postingSizes;
+    this.estimatedBytes = estimatedBytes;
+  }
+
+  /**
+   * Get amount of the searches (getSet, getTop and searchFuzzy calls)
+   *
+   * @return amount of the searches
+   */
+  public long getSearchCount() {
+    long count = 0;
+    for (long bucket : searchLatencies) {
+      count += bucket;
+    }
+    return count;
+  }
+
+  /**
+   * Get the histogram of the search latencies
+   *
+   * @return amount of the searches by the binary order of magnitude of the latency in nanoseconds
+   */
+  public long[] getSearchLatencyHistogram() {
+    return searchLatencies.clone();
+  }
+
+  /**
+   * Get an upper bound of a search latency percentile (the precision is the bucket of the histogram)
+   *
+   * @param percentile - percentile in (0, 100]
+   * @return the upper bound of the latency in nanoseconds or 0 if there are no searches
+   */
+  public long getSearchLatencyPercentile(double percentile) {
+    if (percentile <= 0 || percentile > 100)
+      throw new RuntimeException("Percentile should be in (0, 100]");
+
+    long count = getSearchCount();
+    if (count == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < searchLatencies.length; i++) {
+      seen += searchLatencies[i];
+      if (seen >= rank)
+        return i == 62 ? Long.MAX_VALUE : (2L << i) - 1;
+    }
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Get amount of the calls of the cache loaders made by the searches (the values searched but not found in
+   * a synchronous cache), the loads of the puts, of the cache reads outside the trie and the refreshes are not counted
+   *
+   * @return amount of the loader calls of the searches
+   */
+  public long getLoadCount() {
+    return loadCount;
+  }
+
+  /**
+   * Get amount of the entries removed from the trie due to their eviction from a cache
+   *
+   * @return amount of the removals
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Get amount of the entries by cache id
+   *
+   * @return amount of the entries by cache id
+   */
+  public Map<I, Long> getEntryCounts() {
+    return entryCounts;
+  }
+
+  /**
+   * Get amount of the trie nodes
+   *
+   * @return amount of the nodes
+   */
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * Get the histogram of the sizes of the entry key sets of the heap nodes
+   *
+   * @return amount of the sets by the binary order of magnitude of the size
+   */
+  public long[] getPostingSizeHistogram() {
+    return postingSizes.clone();
+  }
+
+  /**
+   * Get estimated heap size of the trie nodes and their entry key sets (the cached values and the keys are not
+   * included, a frozen segment is out of the heap)
+   *
+   * @return estimated amount of bytes
+   */
+  public long getEstimatedBytes() {
+    return estimatedBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TrieStats{searchCount=%d, p50=%dns, p99=%dns, loadCount=%d, evictionCount=%d, " +
+                    "entryCounts=%s, nodeCount=%d, estimatedBytes=%d}", getSearchCount(),
+            getSearchLatencyPercentile(50), getSearchLatencyPercentile(99), loadCount, evictionCount, entryCounts,
+            nodeCount, estimatedBytes);
+  }
+}
@@ -0,0 +1,74 @@
+package com.dsborets.trie;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the trie hot paths (see {@link TrieBuilder#recordStats()}).
+ * Every counter is a {@link LongAdder}, so concurrent searches recording their latencies update different cells
+ * instead of contending on one value. A latency is recorded to the bucket of its binary order of magnitude,
+ * so the recording is a couple of adds without any allocation
+ */
+class TrieStatsCounter {
+  static final int BUCKETS = 64;
+
+  private final LongAdder[] searchLatencies = new LongAdder[BUCKETS];
+
+  private final LongAdder loads = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  TrieStatsCounter() {
+    for (int i = 0; i < BUCKETS; i++) {
+      searchLatencies[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Record a search
+   *
+   * @param nanos - latency of the search
+   */
+  void recordSearch(long nanos) {
+    searchLatencies[bucketOf(nanos)].increment();
+  }
+
+  /**
+   * Record a call of a cache loader
+   */
+  void recordLoad() {
+    loads.increment();
+  }
+
+  /**
+   * Record a removal of an evicted entry from the trie
+   */
+  void recordEviction() {
+    evictions.increment();
+  }
+
+  long[] getSearchLatencies() {
+    long[] histogram = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      histogram[i] = searchLatencies[i].sum();
+    }
+    return histogram;
+  }
+
+  long getLoadCount() {
+    return loads.sum();
+  }
+
+  long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * Get the bucket of a value: the bucket i holds the values in [2^i, 2^(i+1)), the bucket 0 holds 0 as well
+   *
+   * @param value - not negative value
+   * @return the bucket
+   */
+  static int bucketOf(long value) {
+    return value <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(value);
+  }
+}
@@ -0,0 +1,287 @@
+package com.dsborets.trie;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Write-behind maintenance of the trie: the token writes of the cache writes, removals and evictions are queued
+ * instead of walking the trie on the write path, and a single indexer thread applies them in batches.
+ * <p>
+ * A batch is collected until its first write is as stale as allowed (or the batch is as large as the queue), then
+ * the writes of a token and an entry key are collapsed to the last one and the batch is applied sorted by token,
+ * so the writes of adjacent keys take the same stripe lock and walk the same hot nodes one after another.
+ * The removals of a batch are applied before the puts: a removal takes the entry key off the whole path of
+ * the token, including the prefixes shared with the other tokens of the entry key, which are put again after it
+ * (see the reindex of a put).
+ * <p>
+ * A writer blocks while the queue is full. The indexer thread is started on demand and stops when the queue is
+ * idle, so a trie left without writes keeps no thread.
+ * <p>
+ * A write which fails doesn't stop the writes following it. The failure is kept until the next flush, which
+ * throws it, so the failure of a write applied behind the writer is not lost.
+ */
+class WriteBehindIndexer {
+  private static final long KEEP_ALIVE_SECONDS = 1;
+
+  /**
+   * Writer of a token to the trie
+   */
+  @FunctionalInterface
+  interface TokenWriter {
+
+    /**
+     * Write a token
+     *
+     * @param key             - the string containing the token
+     * @param start           - offset of the token in the string
+     * @param end             - end of the token in the string (exclusive)
+     * @param value           - the entry key of the token
+     * @param substringSearch - whether the suffixes of the token are indexed
+     */
+    void write(String key, int start, int end, EntryKey value, boolean substringSearch);
+  }
+
+  // the token writes and the flush barriers in order
+  private final BlockingQueue<Object> queue;
+
+  private final int maxBatchSize;
+
+  private final long maxStalenessNanos;
+
+  private final TokenWriter putWriter;
+
+  private final TokenWriter removeWriter;
+
+  private final ThreadPoolExecutor executor;
+
+  // whether a drain is running or submitted, so there is one indexer at most
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  // the failures of the writes applied since the last flush, the first one with the others suppressed
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+  /**
+   * @param queueCapacity     - max amount of the queued token writes
+   * @param maxStalenessNanos - max time a write waits for the following ones to be batched with
+   * @param putWriter         - writer putting a token to the trie
+   * @param removeWriter      - writer removing a token from the trie
+   */
+  WriteBehindIndexer(int queueCapacity, long maxStalenessNanos, TokenWriter putWriter, TokenWriter removeWriter) {
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.maxBatchSize = queueCapacity;
+    this.maxStalenessNanos = maxStalenessNanos;
+    this.putWriter = putWriter;
+    this.removeWriter = removeWriter;
+    this.executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "trie-indexer");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue a put of a token
+   *
+   * @param key             - the string containing the token
+   * @param start           - offset of the token in the string
+   * @param end             - end of the token in the string (exclusive)
+   * @param value           - the entry key of the token
+   * @param substringSearch - whether the suffixes of the token are indexed
+   */
+  void put(String key, int start, int end, EntryKey value, boolean substringSearch) {
+    enqueue(new Write(key, start, end, value, substringSearch, false));
+  }
+
+  /**
+   * Queue a removal of a token
+   *
+   * @param key             - the string containing the token
+   * @param start           - offset of the token in the string
+   * @param end             - end of the token in the string (exclusive)
+   * @param value           - the entry key of the token
+   * @param substringSearch - whether the suffixes of the token are indexed
+   */
+  void remove(String key, int start, int end, EntryKey value, boolean substringSearch) {
+    enqueue(new Write(key, start, end, value, substringSearch, true));
+  }
+
+  /**
+   * Wait until the writes queued before the call are applied
+   *
+   * @throws RuntimeException if a write applied since the previous flush failed
+   */
+  void flush() {
+    CompletableFuture<Void> barrier = new CompletableFuture<>();
+    enqueue(barrier);
+    try {
+      barrier.join();
+    } catch (CompletionException e) {
+      throw new RuntimeException("Unable to apply the trie writes", e.getCause());
+    }
+  }
+
+  private void enqueue(Object element) {
+    try {
+      queue.put(element);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the trie indexer", e);
+    }
+    schedule();
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    try {
+      Object first;
+      while ((first = queue.poll()) != null) {
+        applyBatch(first);
+      }
+    } finally {
+      scheduled.set(false);
+    }
+    // an element queued after the last poll, but before the flag is reset, hasn't scheduled a drain
+    if (!queue.isEmpty()) {
+      schedule();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void applyBatch(Object first) {
+    List<Write> batch = new ArrayList<>();
+    List<CompletableFuture<Void>> barriers = new ArrayList<>();
+    long deadline = System.nanoTime();
+    if (first instanceof Write) {
+      deadline = ((Write) first).queuedAt + maxStalenessNanos;
+    }
+
+    Object next = first;
+    while (next != null) {
+      if (next instanceof Write) {
+        batch.add((Write) next);
+      } else {
+        // a flush doesn't wait for the staleness, the writes queued so far are applied at once
+        barriers.add((CompletableFuture<Void>) next);
+        deadline = System.nanoTime();
+      }
+      if (batch.size() >= maxBatchSize)
+        break;
+      next = poll(deadline);
+    }
+
+    apply(batch);
+    if (barriers.isEmpty())
+      return;
+
+    RuntimeException e = failure.getAndSet(null);
+    if (e != null) {
+      barriers.forEach(barrier -> barrier.completeExceptionally(e));
+    } else {
+      barriers.forEach(barrier -> barrier.complete(null));
+    }
+  }
+
+  private Object poll(long deadline) {
+    long remaining = deadline - System.nanoTime();
+    if (remaining <= 0)
+      return queue.poll();
+
+    try {
+      return queue.poll(remaining, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return queue.poll();
+    }
+  }
+
+  private void apply(List<Write> batch) {
+    // the sort is stable, so the writes of a token are kept in order
+    batch.sort(WriteBehindIndexer::compareTokens);
+
+    List<Write> removals = new ArrayList<>();
+    List<Write> puts = new ArrayList<>();
+    int from = 0;
+    while (from < batch.size()) {
+      int to = from + 1;
+      while (to < batch.size() && compareTokens(batch.get(from), batch.get(to)) == 0) {
+        to++;
+      }
+      // the last write of a token and an entry key wins
+      Map<EntryKey, Write> last = new LinkedHashMap<>();
+      for (int i = from; i < to; i++) {
+        last.put(batch.get(i).value, batch.get(i));
+      }
+      for (Write write : last.values()) {
+        (write.remove ? removals : puts).add(write);
+      }
+      from = to;
+    }
+
+    for (Write write : removals) {
+      write(removeWriter, write);
+    }
+    for (Write write : puts) {
+      write(putWriter, write);
+    }
+  }
+
+  private void write(TokenWriter writer, Write write) {
+    try {
+      writer.write(write.key, write.start, write.end, write.value, write.substringSearch);
+    } catch (RuntimeException e) {
+      if (!failure.compareAndSet(null, e) && failure.get() != e) {
+        failure.get().addSuppressed(e);
+      }
+    }
+  }
+
+  private static int compareTokens(Write first, Write second) {
+    int length = Math.min(first.end - first.start, second.end - second.start);
+    for (int i = 0; i < length; i++) {
+      int diff = first.key.charAt(first.start + i) - second.key.charAt(second.start + i);
+      if (diff != 0)
+        return diff;
+    }
+    return (first.end - first.start) - (second.end - second.start);
+  }
+
+  /**
+   * A queued put or removal of a token
+   */
+  private static final class Write {
+    private final String key;
+    private final int start;
+    private final int end;
+    private final EntryKey value;
+    private final boolean substringSearch;
+    private final boolean remove;
+    private final long queuedAt = System.nanoTime();
+
+    Write(String key, int start, int end, EntryKey value, boolean substringSearch, boolean remove) {
+      this.key = key;
+      this.start = start;
+      this.end = end;
+      this.value = value;
+      this.substringSearch = substringSearch;
+      this.remove = remove;
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package com.dsborets.trie;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Multi-threaded stress test: concurrent puts, removes, evictions and searches must keep the trie consistent
+ */
+public class ConcurrentTrieTest {
+  private static final int THREADS = 8;
+  private static final int IDS_PER_THREAD = 500;
+  private static final int OPERATIONS_PER_THREAD = 20000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private List<String> words;
+
+  @Before
+  public void setUp() throws Exception {
+    Random random = new Random(42);
+    words = new ArrayList<>();
+    for (int i = 0; i < THREADS * IDS_PER_THREAD; i++) {
+      // small alphabet to get a lot of shared prefixes
+      StringBuilder sb = new StringBuilder();
+      int length = 3 + random.nextInt(6);
+      for (int j = 0; j < length; j++) {
+        sb.append((char) ('a' + random.nextInt(4)));
+      }
+      words.add(sb.toString());
+    }
+  }
+
+  @Test
+  public void testConcurrentPutRemoveSearch() throws Exception {
+    testConcurrentPutRemoveSearch(new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH, THREADS));
+  }
+
+  @Test
+  public void testConcurrentPutRemoveSearchWithPathCompression() throws Exception {
+    testConcurrentPutRemoveSearch(Trie.newBuilder().concurrencyLevel(THREADS).pathCompression().build());
+  }
+
+  @Test
+  public void testConcurrentPutRemoveSearchWithTerminalPostings() throws Exception {
+    testConcurrentPutRemoveSearch(Trie.newBuilder().concurrencyLevel(THREADS).terminalPostings().build());
+  }
+
+  @Test
+  public void testConcurrentPutRemoveSearchWithPrefixCache() throws Exception {
+    testConcurrentPutRemoveSearch(Trie.newBuilder().concurrencyLevel(THREADS).prefixCache(8, 1000).build());
+  }
+
+  @Test
+  public void testConcurrentPutRemoveSearchWithWriteBehind() throws Exception {
+    // the queue is small, so the writers wait for the indexer
+    testConcurrentPutRemoveSearch(Trie.newBuilder().concurrencyLevel(THREADS).prefixCache(8, 1000)
+            .writeBehind(256, 5, TimeUnit.MILLISECONDS).build());
+  }
+
+  @Test
+  public void testConcurrentPutRemoveSearchWithFreezing() throws Exception {
+    Trie<Integer, Integer, Record> trie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH, THREADS);
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, loadRecordById());
+
+    File file = folder.newFile();
+    AtomicBoolean done = new AtomicBoolean();
+    Thread freezer = new Thread(() -> {
+      while (!done.get()) {
+        trie.freeze(file.toPath());
+      }
+    });
+    freezer.start();
+    Record[] live;
+    try {
+      live = runConcurrently(trie);
+    } finally {
+      done.set(true);
+      freezer.join();
+    }
+
+    assertLive(trie, live);
+    trie.freeze(file.toPath());
+    assertLive(trie, live);
+
+    for (int id = 0; id < live.length; id++) {
+      trie.remove(1, id);
+    }
+    // the removed entry keys are masked in the frozen segment until the next freezing
+    trie.freeze(file.toPath());
+
+    assertEmpty(trie);
+  }
+
+  private void testConcurrentPutRemoveSearch(Trie<Integer, Integer, Record> trie) throws Exception {
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, loadRecordById());
+
+    Record[] live = runConcurrently(trie);
+    trie.flush();
+    assertLive(trie, live);
+
+    for (int id = 0; id < live.length; id++) {
+      trie.remove(1, id);
+    }
+
+    trie.flush();
+    assertEmpty(trie);
+  }
+
+  private void assertLive(Trie<Integer, Integer, Record> trie, Record[] live) {
+    for (int id = 0; id < live.length; id++) {
+      String word = words.get(id);
+      Set<Record> set = trie.getSet(word);
+      if (live[id] != null) {
+        Assert.assertNotNull(word, set);
+        Assert.assertTrue(word, set.contains(live[id]));
+      } else if (set != null) {
+        for (Record rec : set) {
+          Assert.assertNotEquals(String.valueOf(id), rec.getValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentEviction() throws Exception {
+    Trie<Integer, Integer, Record> trie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH, THREADS);
+    Caffeine cache = Caffeine.newBuilder()
+            .maximumSize(200)
+            .executor(Runnable::run);
+    trie.addCaffeine(1, cache, loadRecordById());
+
+    runConcurrently(trie);
+
+    for (int id = 0; id < words.size(); id++) {
+      trie.remove(1, id);
+    }
+
+    assertEmpty(trie);
+  }
+
+  @Test
+  public void testConcurrentPutAll() throws Exception {
+    Trie<Integer, Integer, Record> trie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH, THREADS);
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, loadRecordById());
+
+    // the writers put the same ids with other words while the trie is built
+    Map<Integer, Record> values = new HashMap<>();
+    for (int id = 0; id < words.size(); id++) {
+      values.put(id, new Record(words.get(id), String.valueOf(id)));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      int firstId = t * IDS_PER_THREAD;
+      futures.add(executor.submit(() -> {
+        for (int id = firstId; id < firstId + IDS_PER_THREAD; id++) {
+          trie.put(1, id, new Record(words.get((id + 1) % words.size()), String.valueOf(id)));
+        }
+      }));
+    }
+    trie.putAll(1, values);
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    Assert.assertEquals(words.size(), trie.getSize());
+    for (int id = 0; id < words.size(); id++) {
+      trie.remove(1, id);
+    }
+    Assert.assertEquals(0, trie.getSize());
+    assertEmpty(trie);
+  }
+
+  /**
+   * Every thread owns its own range of ids and randomly puts, removes and searches them
+   *
+   * @return the records expected to be in the trie by id (null if removed)
+   */
+  private Record[] runConcurrently(Trie<Integer, Integer, Record> trie) throws Exception {
+    Record[] live = new Record[words.size()];
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<?>> futures = new ArrayList<>();
+
+    for (int t = 0; t < THREADS; t++) {
+      int firstId = t * IDS_PER_THREAD;
+      futures.add(executor.submit(() -> {
+        Random random = new Random(firstId);
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+          int id = firstId + random.nextInt(IDS_PER_THREAD);
+          String word = words.get(id);
+          int operation = random.nextInt(3);
+          if (operation == 0) {
+            Record rec = new Record(word, String.valueOf(id));
+            trie.put(1, id, rec);
+            live[id] = rec;
+          } else if (operation == 1) {
+            trie.remove(1, id);
+            live[id] = null;
+          } else {
+            Set<Record> set = trie.getSet(word.substring(0, Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH));
+            if (set != null) {
+              for (Record rec : set) {
+                Assert.assertTrue(rec.getKey().startsWith(word.substring(0, Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH)));
+              }
+            }
+          }
+        }
+      }));
+    }
+
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    return live;
+  }
+
+  private Function<Integer, Record> loadRecordById() {
+    return id -> new Record(words.get(id), String.valueOf(id));
+  }
+
+  private void assertEmpty(Trie<Integer, Integer, Record> trie) {
+    Assert.assertEquals(0, trie.getNodeSize());
+    for (String word : words) {
+      Assert.assertNull(word, trie.getSet(word));
+    }
+  }
+}
@@ -6,14 +6,23 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.zip.GZIPInputStream;
 
@@ -23,6 +32,9 @@ import java.util.zip.GZIPInputStream;
 public class LoadTest {
   private static final Logger logger = LogManager.getLogger(LoadTest.class);
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   private Trie<Integer, Integer, Record> trie;
   private List<String> dictionary;
 
@@ -75,5 +87,188 @@ public class LoadTest {
 
     set = trie.getSet("aaab");
     Assert.assertNull(set);
+
+    t1 = System.nanoTime();
+    set = trie.getSet("aaa", 10);
+    t2 = System.nanoTime();
+
+    logger.debug("Getting 10 by key in {} seconds.", (t2 - t1) * 0.000000001);
+
+    Assert.assertNotNull(set);
+    Assert.assertTrue(set.size() == 10);
+  }
+
+  @Test
+  public void pathCompressionTest() {
+    Trie<Integer, Integer, Record> radixTrie = buildTrie(Trie.newBuilder().pathCompression());
+
+    Assert.assertTrue(radixTrie.getNodeSize() < trie.getNodeSize());
+    assertSameSearchResults(radixTrie);
+  }
+
+  @Test
+  public void terminalPostingsTest() {
+    Trie<Integer, Integer, Record> terminalTrie = buildTrie(Trie.newBuilder().terminalPostings().pathCompression());
+
+    assertSameSearchResults(terminalTrie);
+  }
+
+  @Test
+  public void snapshotTest() throws Exception {
+    File file = folder.newFile("trie.snapshot");
+    long t1 = System.nanoTime();
+    trie.writeSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+    long t2 = System.nanoTime();
+
+    logger.debug("Snapshot of {} bytes written in {} seconds.", file.length(), (t2 - t1) * 0.000000001);
+
+    Trie<Integer, Integer, Record> restoredTrie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine cache = Caffeine.newBuilder();
+    restoredTrie.addCaffeine(1, cache, key -> new Record(dictionary.get(key), String.valueOf(key)));
+
+    t1 = System.nanoTime();
+    restoredTrie.readSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+    t2 = System.nanoTime();
+
+    logger.debug("Snapshot read in {} seconds.", (t2 - t1) * 0.000000001);
+
+    Assert.assertEquals(restoredTrie.getSize(), trie.getSize());
+    Assert.assertEquals(restoredTrie.getNodeSize(), trie.getNodeSize());
+    assertSameSearchResults(restoredTrie);
+  }
+
+  @Test
+  public void freezeTest() throws Exception {
+    Trie<Integer, Integer, Record> frozenTrie = buildTrie(Trie.newBuilder());
+    int nodeSize = frozenTrie.getNodeSize();
+
+    File file = folder.newFile("trie.segment");
+    long t1 = System.nanoTime();
+    frozenTrie.freeze(file.toPath());
+    long t2 = System.nanoTime();
+
+    logger.debug("Trie frozen to {} bytes in {} seconds.", file.length(), (t2 - t1) * 0.000000001);
+
+    Assert.assertEquals(frozenTrie.getNodeSize(), nodeSize);
+    assertSameSearchResults(frozenTrie);
+  }
+
+  @Test
+  public void putAllTest() {
+    Map<Integer, Record> values = new HashMap<>();
+    IntStream.range(0, dictionary.size()).forEach(idx ->
+            values.put(idx, new Record(dictionary.get(idx), String.valueOf(idx)))
+    );
+
+    Trie<Integer, Integer, Record> bulkTrie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine cache = Caffeine.newBuilder();
+    bulkTrie.addCaffeine(1, cache, key -> new Record("abcd", "value1"));
+
+    long t1 = System.nanoTime();
+    bulkTrie.putAll(1, values);
+    long t2 = System.nanoTime();
+
+    logger.debug("Trie built by putAll in {} seconds.", (t2 - t1) * 0.000000001);
+
+    Assert.assertEquals(bulkTrie.getSize(), trie.getSize());
+    Assert.assertEquals(bulkTrie.getNodeSize(), trie.getNodeSize());
+    assertSameSearchResults(bulkTrie);
+  }
+
+  @Test
+  public void parallelPutAllTest() {
+    Map<Integer, Record> values = new HashMap<>();
+    IntStream.range(0, dictionary.size()).forEach(idx ->
+            values.put(idx, new Record(dictionary.get(idx), String.valueOf(idx)))
+    );
+    Trie<Integer, Integer, Record> radixTrie = buildTrie(Trie.newBuilder().pathCompression());
+
+    Trie<Integer, Integer, Record> bulkTrie = Trie.newBuilder().pathCompression().build();
+    Caffeine cache = Caffeine.newBuilder();
+    bulkTrie.addCaffeine(1, cache, key -> new Record("abcd", "value1"));
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    long t1 = System.nanoTime();
+    bulkTrie.putAll(Collections.singletonMap(1, values), pool);
+    long t2 = System.nanoTime();
+    pool.shutdown();
+
+    logger.debug("Trie built by putAll in {} threads in {} seconds.", pool.getParallelism(), (t2 - t1) * 0.000000001);
+
+    Assert.assertEquals(bulkTrie.getNodeSize(), radixTrie.getNodeSize());
+    assertSameSearchResults(bulkTrie);
+  }
+
+  @Test
+  public void substringSearchTest() {
+    Trie<Integer, Integer, Record> substringTrie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine cache = Caffeine.newBuilder();
+    substringTrie.addCaffeineWithAnalyzer(1, cache, key -> new Record("abcd", "value1"), null, KeyAnalyzer.keyword(),
+            true);
+
+    Map<Integer, Record> values = new HashMap<>();
+    IntStream.range(0, dictionary.size()).forEach(idx ->
+            values.put(idx, new Record(dictionary.get(idx), String.valueOf(idx)))
+    );
+    long t1 = System.nanoTime();
+    substringTrie.putAll(1, values);
+    long t2 = System.nanoTime();
+
+    logger.debug("Trie with substring search built in {} seconds.", (t2 - t1) * 0.000000001);
+
+    Random random = new Random(42);
+    long searchNanos = 0;
+    for (int i = 0; i < 100; i++) {
+      String word = dictionary.get(random.nextInt(dictionary.size())).toLowerCase();
+      if (word.length() < 5)
+        continue;
+      int from = random.nextInt(word.length() - 3);
+      String fragment = word.substring(from, from + 3 + random.nextInt(word.length() - from - 2));
+
+      t1 = System.nanoTime();
+      Set<String> found = values(substringTrie.getSetContaining(fragment));
+      searchNanos += System.nanoTime() - t1;
+
+      Set<String> expected = IntStream.range(0, dictionary.size())
+              .filter(idx -> dictionary.get(idx).toLowerCase().contains(fragment))
+              .mapToObj(String::valueOf)
+              .collect(Collectors.toSet());
+      Assert.assertEquals(fragment, expected, found);
+    }
+
+    logger.debug("Searching by fragments in {} seconds.", searchNanos * 0.000000001);
+  }
+
+  private Trie<Integer, Integer, Record> buildTrie(TrieBuilder builder) {
+    Trie<Integer, Integer, Record> newTrie = builder.build();
+    Caffeine cache = Caffeine.newBuilder();
+    newTrie.addCaffeine(1, cache, key -> new Record("abcd", "value1"));
+
+    long t1 = System.nanoTime();
+
+    IntStream.range(0, dictionary.size()).forEach(idx ->
+            newTrie.put(1, idx, new Record(dictionary.get(idx), String.valueOf(idx)))
+    );
+
+    long t2 = System.nanoTime();
+
+    logger.debug("Trie built in {} seconds; node size: {}", (t2 - t1) * 0.000000001, newTrie.getNodeSize());
+    return newTrie;
+  }
+
+  private void assertSameSearchResults(Trie<Integer, Integer, Record> other) {
+    Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      String word = dictionary.get(random.nextInt(dictionary.size())).toLowerCase();
+      String prefix = word.substring(0, Math.min(word.length(), 3 + random.nextInt(4)));
+      Assert.assertEquals(prefix, values(trie.getSet(prefix)), values(other.getSet(prefix)));
+    }
+
+    Assert.assertTrue(other.getSet("aaa").size() == 18);
+    Assert.assertNull(other.getSet("aaab"));
+  }
+
+  private static Set<String> values(Set<Record> records) {
+    return records == null ? null : records.stream().map(Record::getValue).collect(Collectors.toSet());
   }
 }
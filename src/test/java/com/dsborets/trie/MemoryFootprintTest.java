@@ -0,0 +1,83 @@
+package com.dsborets.trie;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Heap footprint of the trie nodes built from the dictionary.
+ * The caches are measured separately and subtracted, so only the trie structure is left.
+ */
+public class MemoryFootprintTest {
+  private static final Logger logger = LogManager.getLogger(MemoryFootprintTest.class);
+
+  private static final long MAX_BYTES_PER_NODE = 48;
+
+  private List<String> dictionary;
+
+  @Before
+  public void setUp() throws Exception {
+    Scanner dictionaryInput = new Scanner(new GZIPInputStream(new FileInputStream("src/test/dictionary.txt.gz")));
+
+    dictionary = new ArrayList<>();
+
+    while (dictionaryInput.hasNextLine()) {
+      dictionary.add(dictionaryInput.nextLine());
+    }
+
+    dictionaryInput.close();
+  }
+
+  @Test
+  public void testBytesPerNode() {
+    long cacheBytes = measureCache();
+
+    long t0 = usedHeap();
+    // keys are never searchable, so there are no entry keys in the nodes
+    Trie<Integer, Integer, Record> trie = new Trie<>(Integer.MAX_VALUE);
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, key -> null);
+    for (int idx = 0; idx < dictionary.size(); idx++) {
+      trie.put(1, idx, new Record(dictionary.get(idx), String.valueOf(idx)));
+    }
+    long trieBytes = usedHeap() - t0 - cacheBytes;
+
+    long bytesPerNode = trieBytes / trie.getNodeSize();
+    long estimatedBytes = trie.getStats().getEstimatedBytes();
+    logger.debug("Trie nodes: {}; trie bytes: {}; bytes per node: {}; estimated bytes: {}", trie.getNodeSize(),
+            trieBytes, bytesPerNode, estimatedBytes);
+
+    Assert.assertTrue("Bytes per node: " + bytesPerNode, bytesPerNode <= MAX_BYTES_PER_NODE);
+    Assert.assertTrue("Estimated bytes: " + estimatedBytes, Math.abs(estimatedBytes - trieBytes) < trieBytes / 4);
+  }
+
+  private long measureCache() {
+    long t0 = usedHeap();
+    Cache<Integer, Record> cache = Caffeine.newBuilder().build();
+    for (int idx = 0; idx < dictionary.size(); idx++) {
+      cache.put(idx, new Record(dictionary.get(idx), String.valueOf(idx)));
+    }
+    long bytes = usedHeap() - t0;
+    Assert.assertEquals(dictionary.size(), cache.estimatedSize());
+    return bytes;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,120 @@
+package com.dsborets.trie;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Posting lists compared with a sorted set of ids, including the conversions of the containers between an array and
+ * a bitmap, and the reference counting of the dictionary ids.
+ */
+public class PostingListTest {
+
+  @Test
+  public void testAddRemove() {
+    PostingDictionary dictionary = new PostingDictionary();
+    PostingList list = new PostingList(dictionary);
+    TreeSet<Integer> expected = new TreeSet<>();
+    Random random = new Random(42);
+
+    // the ids of two containers, dense enough for bitmaps at the first half and sparse at the second one
+    for (int i = 0; i < 200_000; i++) {
+      boolean dense = i < 100_000;
+      int id = random.nextInt(dense ? 8000 : 1 << 17) + (random.nextBoolean() ? 0 : 1 << 16);
+      boolean add = dense ? random.nextInt(4) > 0 : random.nextInt(4) == 0;
+      Assert.assertEquals(add ? expected.add(id) : expected.remove(id), add ? list.add(id) : list.remove(id));
+    }
+
+    Assert.assertEquals(expected.size(), list.size());
+    List<Integer> actual = new ArrayList<>();
+    list.forEachId(actual::add);
+    Assert.assertEquals(new ArrayList<>(expected), actual);
+    for (int id = 0; id < 1 << 17; id++) {
+      Assert.assertEquals(expected.contains(id), list.containsId(id));
+    }
+
+    for (int id : expected) {
+      Assert.assertTrue(list.remove(id));
+    }
+    Assert.assertTrue(list.isEmpty());
+  }
+
+  @Test
+  public void testOf() {
+    PostingDictionary dictionary = new PostingDictionary();
+    int[] ids = {70_000, 3, 3, 1, 70_000, 5};
+    PostingList list = PostingList.of(dictionary, ids, ids.length - 1);
+
+    Set<Integer> actual = new HashSet<>();
+    list.forEachId(actual::add);
+    Assert.assertEquals(new HashSet<>(Arrays.asList(1, 3, 70_000)), actual);
+    Assert.assertFalse(list.containsId(5));
+  }
+
+  @Test
+  public void testChunksBySource() {
+    PostingDictionary dictionary = new PostingDictionary();
+    PostingList list = new PostingList(dictionary);
+    for (int key = 0; key < 100; key++) {
+      for (int cacheId = 1; cacheId <= 3; cacheId++) {
+        list.add(dictionary.acquire(new EntryKey<>(cacheId, key), 1));
+      }
+    }
+
+    // the ids of a source share the high bits, so the other sources are skipped by containers
+    BitSet chunks = dictionary.getChunks(Collections.singleton(2));
+    Assert.assertEquals(1, chunks.cardinality());
+    Assert.assertEquals(100, list.size(chunks));
+    List<EntryKey> keys = new ArrayList<>();
+    list.forEach(chunks, keys::add);
+    Assert.assertEquals(100, keys.size());
+    for (EntryKey key : keys) {
+      Assert.assertEquals(2, key.getCacheId());
+    }
+    Assert.assertTrue(dictionary.getChunks(Collections.singleton(4)).isEmpty());
+  }
+
+  @Test
+  public void testReferences() {
+    PostingDictionary dictionary = new PostingDictionary();
+    EntryKey<Integer, Integer> a = new EntryKey<>(1, 1);
+    EntryKey<Integer, Integer> b = new EntryKey<>(1, 2);
+
+    PostingList list = new PostingList(dictionary);
+    list.add(dictionary.acquire(a, 1));
+    list.add(dictionary.acquire(b, 1));
+    Assert.assertEquals(2, dictionary.size());
+    Assert.assertTrue(list.contains(a));
+
+    PostingList copy = list.copy();
+    list.releaseAll();
+    Assert.assertEquals(2, dictionary.size());
+    Assert.assertEquals(new HashSet<>(Arrays.asList(a, b)), new HashSet<>(copy));
+
+    // the released id is not decoded anymore
+    Iterator<EntryKey> iterator = copy.iterator();
+    int id = dictionary.idOf(a);
+    Assert.assertTrue(copy.remove(id));
+    dictionary.release(id, 1);
+    Assert.assertEquals(-1, dictionary.idOf(a));
+    Assert.assertNull(dictionary.get(id));
+
+    // and a reader which still sees it doesn't decode it to the entry key it's reused for
+    EntryKey<Integer, Integer> c = new EntryKey<>(1, 3);
+    Assert.assertEquals(id, dictionary.acquire(c, 1));
+    Assert.assertEquals(c, dictionary.get(id));
+    Assert.assertEquals(2, dictionary.size());
+    Assert.assertEquals(b, iterator.next());
+    Assert.assertFalse(iterator.hasNext());
+  }
+}
@@ -7,12 +7,27 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 
 /**
@@ -21,6 +36,9 @@ import java.util.function.Function;
 public class TrieTest {
   private static final Logger logger = LogManager.getLogger(TrieTest.class);
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   private Trie<Integer, Integer, Record> trie;
 
   private FakeTicker ticker;
@@ -162,6 +180,1051 @@ public class TrieTest {
     Assert.assertEquals(trie.getNodeSize(), 0);
   }
 
+  @Test
+  public void testPathCompression() {
+    Trie<Integer, Integer, Record> trie = Trie.newBuilder().pathCompression().build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById());
+
+    Record rec1 = new Record("abcd", "value1");
+    trie.put(1, 1, rec1);
+    Assert.assertEquals(trie.getNodeSize(), 1);
+
+    Record rec2 = new Record("abce", "value2");
+    trie.put(1, 2, rec2);
+    Assert.assertEquals(trie.getNodeSize(), 3);
+
+    Record rec3 = new Record("ab", "value3");
+    trie.put(1, 3, rec3);
+    Assert.assertEquals(trie.getNodeSize(), 3);
+
+    Assert.assertNull(trie.getSet("ab"));
+    Assert.assertNull(trie.getSet("abx"));
+    Assert.assertNull(trie.getSet("abcde"));
+
+    Set set = trie.getSet("abcd");
+    Assert.assertNotNull(set);
+    Assert.assertArrayEquals(set.toArray(), new Record[]{rec1});
+
+    set = trie.getSet("abc");
+    Assert.assertNotNull(set);
+    Assert.assertTrue(set.size() == 2 && set.contains(rec1) && set.contains(rec2));
+
+    trie.remove(1, 1);
+    Assert.assertNull(trie.getSet("abcd"));
+    Assert.assertEquals(trie.getNodeSize(), 1);
+
+    set = trie.getSet("abc");
+    Assert.assertNotNull(set);
+    Assert.assertArrayEquals(set.toArray(), new Record[]{rec2});
+
+    Record rec4 = new Record("abcdef", "value4");
+    trie.put(1, 4, rec4);
+    Assert.assertEquals(trie.getNodeSize(), 3);
+
+    set = trie.getSet("abcde");
+    Assert.assertNotNull(set);
+    Assert.assertArrayEquals(set.toArray(), new Record[]{rec4});
+
+    trie.remove(1, 2);
+    trie.remove(1, 3);
+    Assert.assertEquals(trie.getNodeSize(), 1);
+
+    set = trie.getSet("abc");
+    Assert.assertNotNull(set);
+    Assert.assertArrayEquals(set.toArray(), new Record[]{rec4});
+
+    trie.remove(1, 4);
+    Assert.assertNull(trie.getSet("abc"));
+    Assert.assertEquals(trie.getNodeSize(), 0);
+  }
+
+  @Test
+  public void testTerminalPostings() {
+    Trie<Integer, Integer, Record> trie = Trie.newBuilder().terminalPostings().build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById(), " ");
+
+    Record rec1 = new Record("red shoe", "value1");
+    trie.put(1, 1, rec1);
+
+    Record rec2 = new Record("red shirt", "value2");
+    trie.put(1, 2, rec2);
+
+    Assert.assertEquals(trie.getNodeSize(), 10);
+
+    Set set = trie.getSet("red");
+    Assert.assertNotNull(set);
+    Assert.assertTrue(set.size() == 2 && set.contains(rec1) && set.contains(rec2));
+
+    set = trie.getSet("sho");
+    Assert.assertNotNull(set);
+    Assert.assertArrayEquals(set.toArray(), new Record[]{rec1});
+
+    Assert.assertNull(trie.getSet("re"));
+    Assert.assertNull(trie.getSet("shoes"));
+
+    set = trie.getSet("red", 1);
+    Assert.assertNotNull(set);
+    Assert.assertEquals(set.size(), 1);
+
+    trie.remove(1, 1);
+    Assert.assertNull(trie.getSet("shoe"));
+    Assert.assertEquals(trie.getNodeSize(), 8);
+
+    set = trie.getSet("sh");
+    Assert.assertNull(set);
+
+    set = trie.getSet("shi");
+    Assert.assertNotNull(set);
+    Assert.assertArrayEquals(set.toArray(), new Record[]{rec2});
+
+    trie.remove(1, 2);
+    Assert.assertNull(trie.getSet("red"));
+    Assert.assertEquals(trie.getNodeSize(), 0);
+  }
+
+  @Test
+  public void testGetSetWithLimit() {
+    for (int i = 0; i < 10; i++) {
+      trie.put(1, i, new Record("abc" + i, "value" + i));
+    }
+
+    Set<Record> set = trie.getSet("abc", 3);
+    Assert.assertNotNull(set);
+    Assert.assertEquals(set.size(), 3);
+    set.forEach(rec -> Assert.assertTrue(rec.getName().startsWith("abc")));
+
+    set = trie.getSet("abc", 20);
+    Assert.assertNotNull(set);
+    Assert.assertEquals(set.size(), 10);
+
+    set = trie.getSet("abc5", 3);
+    Assert.assertNotNull(set);
+    Assert.assertEquals(set.size(), 1);
+
+    Assert.assertNull(trie.getSet("abd", 3));
+  }
+
+  @Test
+  public void testGetTop() {
+    for (int i = 0; i < 10; i++) {
+      trie.put(2, i, new Record("abc" + i, String.valueOf((i * 7) % 10)));
+    }
+
+    List<Record> list = trie.getTop("abc", 3, rec -> Double.parseDouble(rec.getValue()));
+    Assert.assertNotNull(list);
+    Assert.assertEquals(list.size(), 3);
+    Assert.assertEquals(list.get(0).getValue(), "9");
+    Assert.assertEquals(list.get(1).getValue(), "8");
+    Assert.assertEquals(list.get(2).getValue(), "7");
+
+    list = trie.getTop("abc", 20, rec -> Double.parseDouble(rec.getValue()));
+    Assert.assertNotNull(list);
+    Assert.assertEquals(list.size(), 10);
+    Assert.assertEquals(list.get(9).getValue(), "0");
+
+    Assert.assertNull(trie.getTop("abd", 3, rec -> Double.parseDouble(rec.getValue())));
+  }
+
+  @Test
+  public void testLazyStream() {
+    AtomicInteger loads = new AtomicInteger();
+    Caffeine cache = Caffeine.newBuilder()
+            .refreshAfterWrite(5, TimeUnit.SECONDS)
+            .executor(Runnable::run)
+            .ticker(ticker::read);
+    Trie<Integer, Integer, Record> trie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    trie.addCaffeine(1, cache, key -> {
+      loads.incrementAndGet();
+      return new Record("abc" + key, "value2");
+    });
+
+    for (int i = 0; i < 10; i++) {
+      trie.put(1, i, new Record("abc" + i, "value1"));
+    }
+
+    ticker.advance(30, TimeUnit.MINUTES);
+
+    Assert.assertEquals(trie.count("abc"), 10);
+    Assert.assertEquals(trie.count("abc1"), 1);
+    Assert.assertEquals(trie.count("abd"), 0);
+
+    Set<Integer> ids = trie.streamKeys("abc").map(EntryKey::getKey).collect(Collectors.toSet());
+    Assert.assertEquals(ids.size(), 10);
+    Assert.assertEquals(loads.get(), 0);
+
+    List<Record> page = trie.stream("abc").limit(3).collect(Collectors.toList());
+    Assert.assertEquals(page.size(), 3);
+    Assert.assertEquals(loads.get(), 3);
+
+    Assert.assertFalse(trie.stream("abd").findAny().isPresent());
+  }
+
+  @Test
+  public void testBulkLoading() {
+    AtomicInteger loads = new AtomicInteger();
+    AtomicInteger bulkLoads = new AtomicInteger();
+    Caffeine cache = Caffeine.newBuilder()
+            .expireAfterWrite(5, TimeUnit.SECONDS)
+            .executor(Runnable::run)
+            .ticker(ticker::read);
+    Trie<Integer, Integer, Record> trie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Function<Integer, Record> loader = key -> {
+      loads.incrementAndGet();
+      return new Record("abc" + key, "value2");
+    };
+    Function<Set<Integer>, Map<Integer, Record>> bulkLoader = keys -> {
+      bulkLoads.incrementAndGet();
+      return keys.stream().collect(Collectors.toMap(Function.identity(), key -> new Record("abc" + key, "value2")));
+    };
+    trie.addCaffeine(1, cache, loader, bulkLoader, null);
+
+    for (int i = 0; i < 10; i++) {
+      trie.put(1, i, new Record("abc" + i, "value1"));
+    }
+
+    ticker.advance(30, TimeUnit.MINUTES);
+
+    Set<Record> set = trie.getSet("abc");
+    Assert.assertNotNull(set);
+    Assert.assertEquals(set.size(), 10);
+    set.forEach(rec -> Assert.assertEquals(rec.getValue(), "value2"));
+    Assert.assertEquals(bulkLoads.get(), 1);
+    Assert.assertEquals(loads.get(), 0);
+  }
+
+  @Test
+  public void testAsyncCache() throws Exception {
+    Caffeine cache = Caffeine.newBuilder()
+            .maximumSize(5)
+            .executor(Runnable::run);
+    trie.addAsyncCaffeine(3, cache, (key, executor) ->
+            CompletableFuture.completedFuture(new Record("async" + key, "value" + key)), null);
+
+    trie.put(3, 1, new Record("abc", "value3"));
+    trie.put(1, 1, new Record("abc", "value1"));
+
+    Set<Record> set = trie.getSetAsync("abc").get();
+    Assert.assertNotNull(set);
+    Assert.assertEquals(set.size(), 2);
+    Assert.assertEquals(trie.getSet("abc"), set);
+
+    trie.remove(3, 1);
+    set = trie.getSetAsync("abc", Runnable::run).get();
+    Assert.assertEquals(set.size(), 1);
+    Assert.assertEquals(set.iterator().next().getValue(), "value1");
+    Assert.assertNull(trie.getSetAsync("xyz").get());
+
+    // evicted entries are removed from the trie
+    for (int i = 0; i < 100; i++) {
+      trie.put(3, i, new Record("async" + i, "value" + i));
+    }
+    set = trie.getSetAsync("async").get();
+    Assert.assertNotNull(set);
+    Assert.assertTrue(set.size() <= 5);
+  }
+
+  @Test
+  public void testAsyncEvictionOfPutAgainKey() {
+    List<Runnable> tasks = new ArrayList<>();
+    Caffeine cache = Caffeine.newBuilder()
+            .maximumSize(1)
+            .executor(tasks::add);
+    trie.addAsyncCaffeine(3, cache, (key, executor) -> CompletableFuture.completedFuture(null), null);
+
+    trie.put(3, 1, new Record("abc", "value1"));
+    trie.put(3, 2, new Record("xyz", "value2"));
+    // the eviction is done by the maintenance, and the removal listener is held back
+    List<Runnable> listeners = new ArrayList<>();
+    while (!tasks.isEmpty()) {
+      Runnable task = tasks.remove(0);
+      if (task.getClass().getSimpleName().equals("PerformCleanupTask")) {
+        task.run();
+      } else {
+        listeners.add(task);
+      }
+    }
+    Assert.assertFalse(listeners.isEmpty());
+
+    // both keys are put again with other words before the listener is called
+    trie.put(3, 1, new Record("abd", "value1"));
+    trie.put(3, 2, new Record("xyw", "value2"));
+    listeners.forEach(Runnable::run);
+    while (!tasks.isEmpty()) {
+      tasks.remove(0).run();
+    }
+
+    Assert.assertEquals(trie.getSize(), 1);
+    Assert.assertNull(trie.getSet("abc"));
+    Assert.assertNull(trie.getSet("xyz"));
+    Assert.assertEquals(trie.count("abd") + trie.count("xyw"), 1);
+  }
+
+  @Test
+  public void testCharSequenceSearch() {
+    Record rec1 = new Record("abcd", "value1");
+    trie.put(1, 1, rec1);
+    trie.put(2, 1, new Record("abce", "value2"));
+
+    char[] text = "xx abcd yy".toCharArray();
+    Set<Record> set = trie.getSet(text, 3, 4);
+    Assert.assertNotNull(set);
+    Assert.assertArrayEquals(set.toArray(), new Record[]{rec1});
+    Assert.assertEquals(trie.count(text, 3, 3), 2);
+    Assert.assertEquals(trie.count(text, 3, 2), 0);
+    Assert.assertNull(trie.getSet(text, 0, 4));
+
+    Assert.assertEquals(trie.getSet(new StringBuilder("abc")), trie.getSet("abc"));
+    Assert.assertEquals(trie.count(new StringBuilder("abcd")), 1);
+  }
+
+  @Test
+  public void testCountWithoutAllocation() {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    for (int i = 0; i < 100; i++) {
+      trie.put(1, i, new Record("abc" + i, "value" + i));
+    }
+    char[] key = "abc1".toCharArray();
+    StringBuilder sb = new StringBuilder("abc1");
+
+    long threadId = Thread.currentThread().getId();
+    long count = 0;
+    long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 10000; i++) {
+      count += trie.count(key, 0, key.length) + trie.count(sb);
+    }
+    allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+
+    Assert.assertEquals(count, 10000 * 22);
+    // nothing is allocated per lookup (a few bytes may be counted by the measuring itself)
+    Assert.assertTrue("Allocated bytes: " + allocated, allocated < 10000);
+  }
+
+  @Test
+  public void testSearchFuzzy() {
+    testSearchFuzzy(trie);
+    testSearchFuzzy(Trie.newBuilder().pathCompression().build());
+    testSearchFuzzy(Trie.newBuilder().terminalPostings().build());
+  }
+
+  private void testSearchFuzzy(Trie<Integer, Integer, Record> trie) {
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(3, cache, mockLoadRecordById());
+    Record apple = new Record("apple", "1");
+    Record apply = new Record("apply", "2");
+    Record ample = new Record("ample", "3");
+    trie.put(3, 1, apple);
+    trie.put(3, 2, apply);
+    trie.put(3, 3, ample);
+    trie.put(3, 4, new Record("banana", "4"));
+
+    List<Record> list = trie.searchFuzzy("appl", 0);
+    Assert.assertNotNull(list);
+    Assert.assertEquals(list.size(), 2);
+    Assert.assertTrue(list.contains(apple) && list.contains(apply));
+
+    list = trie.searchFuzzy("appl", 1);
+    Assert.assertNotNull(list);
+    Assert.assertEquals(list.size(), 3);
+    Assert.assertEquals(list.get(2), ample);
+
+    // a missing char and a transposition
+    list = trie.searchFuzzy("aple", 1);
+    Assert.assertNotNull(list);
+    Assert.assertTrue(list.contains(apple) && list.contains(ample));
+    Assert.assertFalse(list.contains(apply));
+    Assert.assertEquals(trie.searchFuzzy("aplpe", 2).size(), 3);
+
+    Assert.assertNull(trie.searchFuzzy("bnnx", 1));
+    Assert.assertEquals(trie.searchFuzzy("bnnx", 2).get(0).getName(), "banana");
+  }
+
+  @Test
+  public void testMultiTermQuery() {
+    AtomicInteger loads = new AtomicInteger();
+    Caffeine cache = Caffeine.newBuilder()
+            .expireAfterWrite(5, TimeUnit.SECONDS)
+            .executor(Runnable::run)
+            .ticker(ticker::read);
+    trie.addCaffeine(3, cache, key -> {
+      loads.incrementAndGet();
+      return new Record(key == 1 ? "red shoes" : key == 2 ? "red shirt" : "blue shoes", "value" + key);
+    }, " ");
+    trie.put(3, 1, new Record("red shoes", "value1"));
+    trie.put(3, 2, new Record("red shirt", "value2"));
+    trie.put(3, 3, new Record("blue shoes", "value3"));
+
+    Set<Record> set = trie.getSet(QueryOperator.AND, "red", "shoe");
+    Assert.assertNotNull(set);
+    Assert.assertEquals(set.size(), 1);
+    Assert.assertEquals(set.iterator().next().getValue(), "value1");
+
+    set = trie.getSet(QueryOperator.OR, "shirt", "blue");
+    Assert.assertNotNull(set);
+    Assert.assertEquals(set.size(), 2);
+
+    Assert.assertNull(trie.getSet(QueryOperator.AND, "red", "boots"));
+    Assert.assertEquals(trie.getSet(QueryOperator.OR, "red", "boots").size(), 2);
+    Assert.assertNull(trie.getSet(QueryOperator.OR, "green", "boots"));
+
+    // only the values related to every term are taken from the cache
+    ticker.advance(30, TimeUnit.MINUTES);
+    Assert.assertEquals(trie.getSet(QueryOperator.AND, "shoe", "blu").size(), 1);
+    Assert.assertEquals(loads.get(), 1);
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    testSnapshot(Trie.newBuilder());
+    testSnapshot(Trie.newBuilder().pathCompression());
+    testSnapshot(Trie.newBuilder().pathCompression().terminalPostings());
+  }
+
+  private void testSnapshot(TrieBuilder builder) throws Exception {
+    Trie<Integer, Integer, Record> trie = builder.build();
+    Caffeine cache1 = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache1, mockLoadRecordById());
+    Caffeine cache2 = Caffeine.newBuilder();
+    trie.addCaffeine(2, cache2, mockLoadRecordById(), " ");
+    trie.put(1, 1, new Record("abcd", "value1"));
+    trie.put(1, 2, new Record("abce", "value2"));
+    trie.put(2, 1, new Record("abcd xyz", "value1"));
+
+    File file = folder.newFile();
+    trie.writeSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+
+    Trie<Integer, Integer, Record> restoredTrie = builder.build();
+    Caffeine restoredCache1 = Caffeine.newBuilder();
+    restoredTrie.addCaffeine(1, restoredCache1, key -> new Record(key == 1 ? "abcd" : "abce", "value" + key));
+    Caffeine restoredCache2 = Caffeine.newBuilder();
+    restoredTrie.addCaffeine(2, restoredCache2, key -> new Record("abcd xyz", "value" + key), " ");
+    restoredTrie.readSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+
+    Assert.assertEquals(restoredTrie.getSize(), 3);
+    Assert.assertEquals(restoredTrie.getNodeSize(), trie.getNodeSize());
+    Assert.assertEquals(restoredTrie.count("abc"), 3);
+    Assert.assertEquals(restoredTrie.getSet("xyz").iterator().next().getValue(), "value1");
+
+    // the values which are not loaded yet are removed from the trie as well
+    restoredTrie.remove(1, 2);
+    restoredTrie.remove(2, 1);
+    Assert.assertNull(restoredTrie.getSet("abce"));
+    Assert.assertNull(restoredTrie.getSet("xyz"));
+    Assert.assertEquals(restoredTrie.count("abc"), 1);
+
+    restoredTrie.remove(1, 1);
+    Assert.assertEquals(restoredTrie.getNodeSize(), 0);
+  }
+
+  @Test
+  public void testPutToRestoredCache() throws Exception {
+    Trie<Integer, Integer, Record> trie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById());
+    trie.put(1, 1, new Record("alpha", "value1"));
+    File file = folder.newFile();
+    trie.writeSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+
+    // the backing store has the records of the new keys already, but only the restored keys are loaded by a put
+    Map<Integer, Record> store = new HashMap<>();
+    store.put(1, new Record("alpha", "value1"));
+    store.put(2, new Record("beta", "value2"));
+    List<Integer> loads = new ArrayList<>();
+    Trie<Integer, Integer, Record> restoredTrie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine restoredCache = Caffeine.newBuilder();
+    restoredTrie.addCaffeine(1, restoredCache, key -> {
+      loads.add(key);
+      return store.get(key);
+    });
+    restoredTrie.readSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+
+    Record rec2 = new Record("beta", "value2");
+    restoredTrie.put(1, 2, rec2);
+    Assert.assertArrayEquals(restoredTrie.getSet("beta").toArray(), new Record[]{rec2});
+    Assert.assertEquals(restoredTrie.getSize(), 2);
+    Assert.assertTrue(loads.isEmpty());
+
+    // the restored key is loaded once to reindex it
+    Record rec1 = new Record("gamma", "value1");
+    restoredTrie.put(1, 1, rec1);
+    restoredTrie.put(1, 1, rec1);
+    Assert.assertEquals(loads, Collections.singletonList(1));
+    Assert.assertNull(restoredTrie.getSet("alpha"));
+    Assert.assertArrayEquals(restoredTrie.getSet("gamma").toArray(), new Record[]{rec1});
+    Assert.assertEquals(restoredTrie.getSize(), 2);
+
+    restoredTrie.remove(1, 1);
+    restoredTrie.remove(1, 2);
+    Assert.assertEquals(restoredTrie.getSize(), 0);
+    Assert.assertEquals(restoredTrie.getNodeSize(), 0);
+  }
+
+  @Test
+  public void testFreeze() throws Exception {
+    testFreeze(Trie.newBuilder());
+    testFreeze(Trie.newBuilder().pathCompression());
+    testFreeze(Trie.newBuilder().pathCompression().terminalPostings());
+  }
+
+  private void testFreeze(TrieBuilder builder) throws Exception {
+    Trie<Integer, Integer, Record> trie = builder.build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById(), " ");
+    Record rec1 = new Record("abcd", "value1");
+    Record rec2 = new Record("abce xyz", "value2");
+    Record rec3 = new Record("abcdef", "value3");
+    trie.put(1, 1, rec1);
+    trie.put(1, 2, rec2);
+    trie.put(1, 3, rec3);
+    int nodeSize = trie.getNodeSize();
+
+    File file = folder.newFile();
+    trie.freeze(file.toPath());
+
+    Assert.assertEquals(trie.getNodeSize(), nodeSize);
+    Assert.assertEquals(trie.count("abc"), 3);
+    Assert.assertEquals(trie.getSet("abcd").size(), 2);
+    Assert.assertArrayEquals(trie.getSet("xyz").toArray(), new Record[]{rec2});
+    Assert.assertArrayEquals(trie.getSet("abcde".toCharArray(), 0, 5).toArray(), new Record[]{rec3});
+    Assert.assertNull(trie.getSet("abcf"));
+    Assert.assertEquals(trie.searchFuzzy("abxd", 1).size(), 2);
+
+    // the writes after freezing are combined with the frozen segment
+    Record rec4 = new Record("abcx", "value4");
+    trie.put(1, 4, rec4);
+    trie.remove(1, 1);
+    Record rec2Updated = new Record("abcz", "value2");
+    trie.put(1, 2, rec2Updated);
+
+    Assert.assertEquals(trie.count("abc"), 3);
+    Assert.assertEquals(trie.stream("abc").count(), 3);
+    Assert.assertArrayEquals(trie.getSet("abcd").toArray(), new Record[]{rec3});
+    Assert.assertNull(trie.getSet("xyz"));
+    Assert.assertArrayEquals(trie.getSet("abcz").toArray(), new Record[]{rec2Updated});
+
+    // and merged to the segment by the next freezing
+    trie.freeze(file.toPath());
+    Assert.assertEquals(trie.count("abc"), 3);
+    Assert.assertArrayEquals(trie.getSet("abcx").toArray(), new Record[]{rec4});
+    Assert.assertNull(trie.getSet("xyz"));
+
+    trie.remove(1, 2);
+    trie.remove(1, 3);
+    trie.remove(1, 4);
+    Assert.assertNull(trie.getSet("abc"));
+    trie.freeze(file.toPath());
+    Assert.assertEquals(trie.getNodeSize(), 0);
+  }
+
+  @Test
+  public void testFreezeLongKey() throws Exception {
+    testFreezeLongKey(Trie.newBuilder());
+    testFreezeLongKey(Trie.newBuilder().pathCompression());
+  }
+
+  private void testFreezeLongKey(TrieBuilder builder) throws Exception {
+    Trie<Integer, Integer, Record> trie = builder.build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById());
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < 20_000; i++) {
+      key.append((char) ('a' + i % 26));
+    }
+    Record rec1 = new Record(key.toString(), "value1");
+    trie.put(1, 1, rec1);
+
+    // the segment is compiled without a stack frame per char
+    File file = folder.newFile();
+    trie.freeze(file.toPath());
+    Assert.assertArrayEquals(trie.getSet(key).toArray(), new Record[]{rec1});
+
+    Record rec2 = new Record(key.substring(0, 10_000) + "x", "value2");
+    trie.put(1, 2, rec2);
+    trie.freeze(file.toPath());
+    Assert.assertEquals(trie.count(key.substring(0, 10_000)), 2);
+    Assert.assertArrayEquals(trie.getSet(rec2.getKey()).toArray(), new Record[]{rec2});
+  }
+
+  @Test
+  public void testSnapshotLongKey() throws Exception {
+    Trie<Integer, String, Record> trie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, key -> new Record("abcd", "value"));
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < 20_000; i++) {
+      key.append((char) ('a' + i % 26));
+    }
+    trie.put(1, "long", new Record(key.toString(), "value1"));
+    trie.put(1, "short", new Record("abcx", "value2"));
+
+    // the nodes are written and read without a stack frame per node
+    File file = folder.newFile();
+    trie.writeSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.strings());
+    Trie<Integer, String, Record> restoredTrie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine restoredCache = Caffeine.newBuilder();
+    Map<String, Record> store = new HashMap<>();
+    store.put("long", new Record(key.toString(), "value1"));
+    store.put("short", new Record("abcx", "value2"));
+    restoredTrie.addCaffeine(1, restoredCache, store::get);
+    restoredTrie.readSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.strings());
+
+    Assert.assertEquals(restoredTrie.getNodeSize(), trie.getNodeSize());
+    Assert.assertEquals(restoredTrie.count("abc"), 2);
+    Assert.assertEquals(restoredTrie.getSet(key).iterator().next().getValue(), "value1");
+    Assert.assertEquals(restoredTrie.getSet("abcx").iterator().next().getValue(), "value2");
+  }
+
+  @Test
+  public void testPutAll() {
+    testPutAll(Trie.newBuilder());
+    testPutAll(Trie.newBuilder().pathCompression());
+    testPutAll(Trie.newBuilder().pathCompression().terminalPostings());
+  }
+
+  private void testPutAll(TrieBuilder builder) {
+    Map<Integer, Record> values = new HashMap<>();
+    values.put(1, new Record("abcd", "value1"));
+    values.put(2, new Record("abce xyz", "value2"));
+    values.put(3, new Record("abcdef", "value3"));
+    values.put(4, new Record("ab", "value4"));
+
+    Trie<Integer, Integer, Record> trie = builder.build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById(), " ");
+    values.forEach((key, value) -> trie.put(1, key, value));
+
+    Trie<Integer, Integer, Record> bulkTrie = builder.build();
+    Caffeine bulkCache = Caffeine.newBuilder();
+    bulkTrie.addCaffeine(1, bulkCache, mockLoadRecordById(), " ");
+    bulkTrie.putAll(1, values);
+
+    Assert.assertEquals(bulkTrie.getSize(), trie.getSize());
+    Assert.assertEquals(bulkTrie.getNodeSize(), trie.getNodeSize());
+    for (String key : new String[]{"abc", "abcd", "abce", "abcdef", "abcdefg", "xyz"}) {
+      Assert.assertEquals(key, trie.getSet(key), bulkTrie.getSet(key));
+    }
+
+    // a non-empty trie takes the keys one by one
+    Record rec5 = new Record("abcz", "value5");
+    bulkTrie.putAll(1, Collections.singletonMap(5, rec5));
+    Assert.assertArrayEquals(bulkTrie.getSet("abcz").toArray(), new Record[]{rec5});
+    Assert.assertEquals(bulkTrie.count("abc"), 4);
+
+    bulkTrie.remove(1, 2);
+    Assert.assertNull(bulkTrie.getSet("xyz"));
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    Trie<Integer, Integer, Record> trie = Trie.newBuilder().recordStats().build();
+    Caffeine cache = Caffeine.newBuilder()
+            .maximumSize(2)
+            .executor(Runnable::run);
+    trie.addCaffeine(1, cache, mockLoadRecordById());
+    trie.put(1, 1, new Record("abcd", "value1"));
+    trie.put(1, 1, new Record("abcd", "value1"));
+    trie.put(1, 2, new Record("abce", "value2"));
+    Assert.assertEquals(trie.getSize(), 2);
+
+    // the least recent entry is evicted
+    trie.put(1, 3, new Record("abcf", "value3"));
+    trie.getSet("abc");
+    trie.getSet("xyz");
+    trie.searchFuzzy("abcx", 1);
+
+    TrieStats<Integer> stats = trie.getStats();
+    Assert.assertEquals(stats.getEntryCounts(), Collections.singletonMap(1, 2L));
+    Assert.assertEquals(trie.getSize(), 2);
+    Assert.assertEquals(stats.getEvictionCount(), 1);
+    Assert.assertEquals(stats.getSearchCount(), 3);
+    Assert.assertTrue(stats.getSearchLatencyPercentile(50) <= stats.getSearchLatencyPercentile(100));
+    Assert.assertEquals(stats.getNodeCount(), trie.getNodeSize());
+    Assert.assertArrayEquals(Arrays.copyOf(stats.getPostingSizeHistogram(), 2), new long[]{2, 1});
+    Assert.assertTrue(stats.getEstimatedBytes() > 0);
+
+    trie.remove(1, 3);
+    trie.remove(1, 3);
+    Assert.assertEquals(trie.getSize(), 1);
+
+    // the restored values are loaded on search
+    File file = folder.newFile();
+    trie.writeSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+    Trie<Integer, Integer, Record> restoredTrie = Trie.newBuilder().recordStats().build();
+    Caffeine restoredCache = Caffeine.newBuilder();
+    restoredTrie.addCaffeine(1, restoredCache, mockLoadRecordById());
+    restoredTrie.readSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+    Assert.assertEquals(restoredTrie.getSize(), 1);
+    Assert.assertEquals(restoredTrie.getStats().getLoadCount(), 0);
+    restoredTrie.getSet("abc");
+    Assert.assertEquals(restoredTrie.getStats().getLoadCount(), 1);
+
+    // the loads outside the searches (of a restored key put again) are not counted
+    Trie<Integer, Integer, Record> reputTrie = Trie.newBuilder().recordStats().build();
+    Caffeine reputCache = Caffeine.newBuilder();
+    reputTrie.addCaffeine(1, reputCache, mockLoadRecordById());
+    reputTrie.readSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+    reputTrie.put(1, 2, new Record("abce", "value2"));
+    reputTrie.getSet("abc");
+    Assert.assertEquals(reputTrie.getStats().getLoadCount(), 0);
+  }
+
+  @Test
+  public void testPrefixCache() {
+    Trie<Integer, Integer, Record> trie = Trie.newBuilder().prefixCache(4, 100).build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById(), " ");
+    Record rec1 = new Record("abcd", "value1");
+    Record rec2 = new Record("abce xyz", "value2");
+    trie.put(1, 1, rec1);
+
+    Assert.assertArrayEquals(trie.getSet("abc").toArray(), new Record[]{rec1});
+    Assert.assertNull(trie.getSet("xyz"));
+
+    // the cached results of the prefixes of the written keys are invalidated
+    trie.put(1, 2, rec2);
+    Assert.assertEquals(trie.getSet("abc").size(), 2);
+    Assert.assertArrayEquals(trie.getSet("xyz").toArray(), new Record[]{rec2});
+    Assert.assertEquals(trie.getSet(QueryOperator.AND, "abc", "xyz").size(), 1);
+
+    trie.remove(1, 1);
+    Assert.assertArrayEquals(trie.getSet("abc").toArray(), new Record[]{rec2});
+    Assert.assertNull(trie.getSet("abcd"));
+
+    Record rec3 = new Record("abcdef", "value3");
+    trie.putAll(1, Collections.singletonMap(3, rec3));
+    Assert.assertEquals(trie.getSet("abcd").size(), 1);
+    Assert.assertEquals(trie.getSet("abcde").size(), 1);
+  }
+
+  @Test
+  public void testKeyNormalizer() {
+    Trie<Integer, Integer, Record> trie = Trie.newBuilder()
+            .keyNormalizer(KeyNormalizer.nfkc().andThen(KeyNormalizer.caseFold()))
+            .build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById(), " ");
+    Record rec1 = new Record("caf\u00e9 \u0130stanbul", "value1");
+    Record rec2 = new Record("\ufb01sh \ud83d\ude00\ud83d\ude01\ud83d\ude02", "value2");
+    trie.put(1, 1, rec1);
+    trie.put(1, 2, rec2);
+
+    // decomposed accent, dotless and dotted i, ligature
+    Assert.assertArrayEquals(trie.getSet("cafe\u0301").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSet("ISTANBUL").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSet("\u0131stan").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSet("FISH".toCharArray(), 0, 4).toArray(), new Record[]{rec2});
+    Assert.assertEquals(trie.count("Fis"), 1);
+    Assert.assertArrayEquals(trie.getSet("\ud83d\ude00\ud83d\ude01").toArray(), new Record[]{rec2});
+    Assert.assertEquals(trie.getSet(QueryOperator.OR, "CAF\u00c9", "fish").size(), 2);
+
+    trie.remove(1, 1);
+    Assert.assertNull(trie.getSet("caf\u00e9"));
+    Assert.assertNull(trie.getSet("istanbul"));
+
+    Assert.assertEquals(KeyNormalizer.stripAccents().normalize("Cr\u00e8me br\u00fbl\u00e9e"), "Creme brulee");
+    Assert.assertEquals(KeyNormalizer.nfc().normalize("cafe\u0301"), "caf\u00e9");
+  }
+
+  @Test
+  public void testNullDelimiter() {
+    Trie<Integer, Integer, Record> trie = Trie.newBuilder().build();
+    Caffeine cache1 = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache1, mockLoadRecordById(), null, null, true);
+    Caffeine cache2 = Caffeine.newBuilder();
+    trie.addAsyncCaffeine(2, cache2, (key, executor) -> CompletableFuture.completedFuture(null), null, false);
+    trie.put(1, 1, new Record("abc def", "value1"));
+    trie.put(2, 1, new Record("abc xyz", "value2"));
+
+    // a null delimiter indexes the whole key
+    Assert.assertEquals(trie.count("abc"), 2);
+    Assert.assertEquals(trie.count("def"), 0);
+    Assert.assertEquals(trie.getSetContaining("def").size(), 1);
+  }
+
+  @Test
+  public void testKeyAnalyzer() {
+    Trie<Integer, Integer, Record> trie = Trie.newBuilder().terminalPostings().build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeineWithAnalyzer(1, cache, mockLoadRecordById(), null,
+            KeyAnalyzer.split("[ ,]+").stopWords("of", "the").minTokenLength(2).edgeNGrams(3, 5), false);
+    Record rec1 = new Record("the lord of the rings, x", "value1");
+    Record rec2 = new Record("lords, of", "value2");
+    trie.put(1, 1, rec1);
+    trie.put(1, 2, rec2);
+
+    // edge n-grams of the tokens up to 5 chars are found by the terminal postings
+    Assert.assertEquals(trie.getSet("lor").size(), 2);
+    Assert.assertEquals(trie.getSet("lords").size(), 1);
+    Assert.assertArrayEquals(trie.getSet("ring").toArray(), new Record[]{rec1});
+    Assert.assertNull(trie.getSet("the"));
+    Assert.assertNull(trie.getSet("ri"));
+    Assert.assertNull(trie.getSet("x"));
+
+    trie.remove(1, 1);
+    trie.remove(1, 2);
+    Assert.assertEquals(trie.getNodeSize(), 0);
+
+    StringBuilder tokens = new StringBuilder();
+    KeyAnalyzer.delimiter("::").analyze("::a::bc::::d", (key, start, end) -> tokens.append(key, start, end).append('|'));
+    Assert.assertEquals(tokens.toString(), "a|bc|d|");
+  }
+
+  @Test
+  public void testSubstringSearch() throws Exception {
+    Trie<Integer, Integer, Record> trie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine cache1 = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache1, mockLoadRecordById(), null, " ", true);
+    Caffeine cache2 = Caffeine.newBuilder();
+    trie.addCaffeine(2, cache2, mockLoadRecordById(), " ");
+    Record rec1 = new Record("AB-12345 Widget", "value1");
+    Record rec2 = new Record("CD-12399", "value2");
+    Record rec3 = new Record("XY-12345", "value3");
+    trie.put(1, 1, rec1);
+    trie.put(1, 2, rec2);
+    trie.put(2, 3, rec3);
+
+    Assert.assertArrayEquals(trie.getSetContaining("12345").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSetContaining("b-1").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSetContaining("dget").toArray(), new Record[]{rec1});
+    Assert.assertEquals(trie.getSetContaining("123").size(), 2);
+    Assert.assertNull(trie.getSetContaining("xy-"));
+    Assert.assertNull(trie.getSetContaining("b-12345 w"));
+    // prefix search is not changed
+    Assert.assertNull(trie.getSet("12345"));
+
+    File file = folder.newFile();
+    trie.writeSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+
+    trie.remove(1, 1);
+    Assert.assertNull(trie.getSetContaining("12345"));
+    Assert.assertArrayEquals(trie.getSetContaining("123").toArray(), new Record[]{rec2});
+
+    Trie<Integer, Integer, Record> restoredTrie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine restoredCache1 = Caffeine.newBuilder();
+    restoredTrie.addCaffeine(1, restoredCache1, key -> key == 1 ? rec1 : rec2, null, " ", true);
+    Caffeine restoredCache2 = Caffeine.newBuilder();
+    restoredTrie.addCaffeine(2, restoredCache2, key -> rec3, " ");
+    restoredTrie.readSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+    Assert.assertArrayEquals(restoredTrie.getSetContaining("12345").toArray(), new Record[]{rec1});
+
+    Trie<Integer, Integer, Record> bulkTrie = new Trie<>(Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+    Caffeine cache3 = Caffeine.newBuilder();
+    bulkTrie.addCaffeine(1, cache3, mockLoadRecordById(), null, " ", true);
+    Map<Integer, Record> values = new HashMap<>();
+    values.put(1, rec1);
+    values.put(2, rec2);
+    bulkTrie.putAll(1, values);
+    Assert.assertArrayEquals(bulkTrie.getSetContaining("2399").toArray(), new Record[]{rec2});
+    Assert.assertEquals(bulkTrie.getSetContaining("123").size(), 2);
+  }
+
+  @Test
+  public void testReindexChangedKey() {
+    testReindexChangedKey(Trie.newBuilder());
+    testReindexChangedKey(Trie.newBuilder().pathCompression().terminalPostings());
+  }
+
+  private void testReindexChangedKey(TrieBuilder builder) {
+    Trie<Integer, Integer, Record> trie = builder.build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById(), null, " ", true);
+    trie.put(1, 1, new Record("abcd", "value1"));
+    int nodeSize = trie.getNodeSize();
+
+    Record rec1 = new Record("abcd xyz", "value1");
+    trie.put(1, 1, rec1);
+    Assert.assertArrayEquals(trie.getSet("xyz").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSetContaining("bcd").toArray(), new Record[]{rec1});
+
+    // the words of the previous key are removed from the trie
+    Record rec1Updated = new Record("klmn abcd", "value1");
+    trie.put(1, 1, rec1Updated);
+    Assert.assertNull(trie.getSet("xyz"));
+    Assert.assertNull(trie.getSetContaining("yz"));
+    Assert.assertArrayEquals(trie.getSet("abc").toArray(), new Record[]{rec1Updated});
+    Assert.assertArrayEquals(trie.getSet("klm").toArray(), new Record[]{rec1Updated});
+
+    // the prefixes shared with a removed word are kept for the remaining word
+    Record rec1Shared = new Record("abcd abcx", "value1");
+    trie.put(1, 1, rec1Shared);
+    Record rec1Kept = new Record("abcx", "value1");
+    trie.put(1, 1, rec1Kept);
+    Assert.assertArrayEquals(trie.getSet("abc").toArray(), new Record[]{rec1Kept});
+    Assert.assertArrayEquals(trie.getSetContaining("bcx").toArray(), new Record[]{rec1Kept});
+    Assert.assertNull(trie.getSet("abcd"));
+
+    trie.put(1, 1, new Record("abcd", "value1"));
+    Assert.assertEquals(trie.getNodeSize(), nodeSize);
+    Assert.assertEquals(trie.getSize(), 1);
+    Assert.assertNull(trie.getSet("klm"));
+
+    trie.remove(1, 1);
+    Assert.assertEquals(trie.getNodeSize(), 0);
+    Assert.assertNull(trie.getSetContaining("bcd"));
+  }
+
+  @Test
+  public void testRefreshIndexedKey() {
+    trie.put(1, 1, new Record("apple", "value1"));
+
+    // the refresh reloads another searchable key, which is reindexed as a put of it
+    ticker.advance(30, TimeUnit.MINUTES);
+    trie.getSet("app");
+    Assert.assertNull(trie.getSet("app"));
+    Assert.assertEquals(trie.getSet("abc").iterator().next().getValue(), "value2");
+    Assert.assertEquals(trie.getSize(), 1);
+
+    // and the refreshed key is still removed from the trie
+    trie.remove(1, 1);
+    Assert.assertEquals(trie.count("abc"), 0);
+    Assert.assertEquals(trie.count("app"), 0);
+    Assert.assertEquals(trie.getSize(), 0);
+  }
+
+  @Test
+  public void testReindexFrozenKey() throws Exception {
+    testReindexFrozenKey(Trie.newBuilder());
+    testReindexFrozenKey(Trie.newBuilder().pathCompression().terminalPostings());
+  }
+
+  private void testReindexFrozenKey(TrieBuilder builder) throws Exception {
+    Trie<Integer, Integer, Record> trie = builder.build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById(), null, " ", true);
+    trie.put(1, 1, new Record("red shoe", "value1"));
+    File file = folder.newFile();
+    trie.freeze(file.toPath());
+
+    // the words kept in the frozen segment are found after a word is added to the key
+    Record rec1 = new Record("red shoe big", "value1");
+    trie.put(1, 1, rec1);
+    Assert.assertArrayEquals(trie.getSet("red").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSet("shoe").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSet("big").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSetContaining("hoe").toArray(), new Record[]{rec1});
+
+    // and after the next freezing
+    trie.freeze(file.toPath());
+    Assert.assertArrayEquals(trie.getSet("red").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSet("shoe").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSet("big").toArray(), new Record[]{rec1});
+    Assert.assertEquals(trie.count("sho"), 1);
+
+    Record rec1Updated = new Record("shoe", "value1");
+    trie.put(1, 1, rec1Updated);
+    Assert.assertNull(trie.getSet("red"));
+    Assert.assertArrayEquals(trie.getSet("shoe").toArray(), new Record[]{rec1Updated});
+  }
+
+  @Test
+  public void testWriteBehind() throws Exception {
+    // the writes are applied by a flush only, as they may wait for the following ones for an hour
+    Trie<Integer, Integer, Record> trie = Trie.newBuilder().prefixCache(4, 100)
+            .writeBehind(1024, 1, TimeUnit.HOURS).build();
+    Caffeine cache = Caffeine.newBuilder();
+    trie.addCaffeine(1, cache, mockLoadRecordById(), null, " ", true);
+    Record rec1 = new Record("abcd abcx", "value1");
+    trie.put(1, 1, rec1);
+    Assert.assertNull(trie.getSet("abc"));
+
+    trie.flush();
+    Assert.assertArrayEquals(trie.getSet("abc").toArray(), new Record[]{rec1});
+    Assert.assertArrayEquals(trie.getSetContaining("bcx").toArray(), new Record[]{rec1});
+
+    // the removed word is applied before the kept one, which is put again
+    Record rec1Kept = new Record("abcx", "value1");
+    trie.put(1, 1, rec1Kept);
+    Record rec2 = new Record("xyzw", "value2");
+    trie.put(1, 2, rec2);
+    trie.remove(1, 2);
+    trie.flush();
+    Assert.assertArrayEquals(trie.getSet("abc").toArray(), new Record[]{rec1Kept});
+    Assert.assertNull(trie.getSet("abcd"));
+    Assert.assertNull(trie.getSet("xyz"));
+    Assert.assertNull(trie.getSetContaining("yzw"));
+
+    trie.remove(1, 1);
+    trie.flush();
+    Assert.assertEquals(trie.getNodeSize(), 0);
+    Assert.assertEquals(trie.getSize(), 0);
+
+    // a write is applied within the max staleness without a flush
+    Trie<Integer, Integer, Record> staleTrie = Trie.newBuilder().writeBehind(1024, 10, TimeUnit.MILLISECONDS).build();
+    Caffeine staleCache = Caffeine.newBuilder();
+    staleTrie.addCaffeine(1, staleCache, mockLoadRecordById());
+    staleTrie.put(1, 1, rec1Kept);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (staleTrie.getSet("abc") == null && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    Assert.assertArrayEquals(staleTrie.getSet("abc").toArray(), new Record[]{rec1Kept});
+  }
+
+  @Test
+  public void testFilteredSearch() throws Exception {
+    testFilteredSearch(Trie.newBuilder());
+    testFilteredSearch(Trie.newBuilder().pathCompression().terminalPostings());
+  }
+
+  private void testFilteredSearch(TrieBuilder builder) throws Exception {
+    Trie<Integer, Integer, Record> trie = builder.build();
+    for (int cacheId = 1; cacheId <= 3; cacheId++) {
+      Caffeine cache = Caffeine.newBuilder();
+      trie.addCaffeine(cacheId, cache, mockLoadRecordById(), null, " ", true);
+    }
+    Record rec1 = new Record("abcd", "value1");
+    Record rec2 = new Record("abce xyz", "value2");
+    Record rec3 = new Record("abcf", "value3");
+    trie.put(1, 1, rec1);
+    trie.put(2, 1, rec2);
+    trie.put(3, 1, rec3);
+
+    Assert.assertArrayEquals(trie.getSet("abc", Collections.singleton(2)).toArray(), new Record[]{rec2});
+    Assert.assertEquals(trie.getSet("abc", new HashSet<>(Arrays.asList(1, 3))).size(), 2);
+    Assert.assertEquals(trie.count("abc", new HashSet<>(Arrays.asList(1, 2))), 2);
+    Assert.assertNull(trie.getSet("abcd", Collections.singleton(2)));
+    Assert.assertNull(trie.getSet("abc", Collections.singleton(4)));
+    Assert.assertEquals(trie.count("abc", Collections.emptySet()), 0);
+    Assert.assertArrayEquals(trie.getSetContaining("bcf", new HashSet<>(Arrays.asList(1, 3))).toArray(), new Record[]{rec3});
+
+    // the frozen segment is filtered as well
+    File file = folder.newFile();
+    trie.freeze(file.toPath());
+    Record rec4 = new Record("abcx", "value4");
+    trie.put(2, 2, rec4);
+    Assert.assertEquals(trie.getSet("abc", Collections.singleton(2)).size(), 2);
+    Assert.assertEquals(trie.count("abc", Collections.singleton(1)), 1);
+    Assert.assertEquals(trie.count("abc"), 4);
+
+    trie.remove(2, 1);
+    Assert.assertArrayEquals(trie.getSet("abc", Collections.singleton(2)).toArray(), new Record[]{rec4});
+  }
+
+  @Test
+  public void testStatsNotRecorded() {
+    trie.getSet("abc");
+    TrieStats<Integer> stats = trie.getStats();
+    Assert.assertEquals(stats.getSearchCount(), 0);
+    Assert.assertEquals(stats.getSearchLatencyPercentile(99), 0);
+    Assert.assertEquals(stats.getNodeCount(), trie.getNodeSize());
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testSnapshotOfDifferentSettings() throws Exception {
+    File file = folder.newFile();
+    trie.writeSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+    Trie<Integer, Integer, Record> radixTrie = Trie.newBuilder().pathCompression().build();
+    radixTrie.readSnapshot(file.toPath(), SnapshotCodec.integers(), SnapshotCodec.integers());
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testGetSetWithZeroLimit() {
+    trie.getSet("abc", 0);
+  }
+
   @Test(expected = RuntimeException.class)
   public void testNoCacheById() {
     Record rec = new Record("abcd", "value1");
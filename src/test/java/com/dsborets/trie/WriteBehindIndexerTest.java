@@ -0,0 +1,52 @@
+package com.dsborets.trie;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind batches applied by the indexer thread, including the failures of the writes handed to the next flush.
+ */
+public class WriteBehindIndexerTest {
+
+  @Test
+  public void testFailureHandedToFlush() throws Exception {
+    List<String> puts = Collections.synchronizedList(new ArrayList<>());
+    WriteBehindIndexer indexer = new WriteBehindIndexer(16, TimeUnit.MILLISECONDS.toNanos(1),
+            (key, start, end, value, substringSearch) -> {
+              if (key.startsWith("bad"))
+                throw new IllegalStateException(key);
+              puts.add(key.substring(start, end));
+            }, (key, start, end, value, substringSearch) -> {
+            });
+
+    // the failed write is applied before any flush waits for it
+    indexer.put("bad1", 0, 4, new EntryKey<>(1, 1), false);
+    indexer.put("abc", 0, 3, new EntryKey<>(1, 2), false);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (puts.isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    Assert.assertEquals(Collections.singletonList("abc"), puts);
+
+    // the writes following the failed ones are applied, and the next flush throws the failures
+    indexer.put("bad2", 0, 4, new EntryKey<>(1, 3), false);
+    indexer.put("xyz", 0, 3, new EntryKey<>(1, 4), false);
+    try {
+      indexer.flush();
+      Assert.fail("The failures of the writes are not thrown");
+    } catch (RuntimeException e) {
+      Assert.assertEquals("bad1", e.getCause().getMessage());
+      Assert.assertEquals("bad2", e.getCause().getSuppressed()[0].getMessage());
+    }
+    Assert.assertEquals(Arrays.asList("abc", "xyz"), puts);
+
+    // and only once
+    indexer.flush();
+  }
+}
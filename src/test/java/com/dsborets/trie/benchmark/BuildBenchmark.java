@@ -0,0 +1,76 @@
+package com.dsborets.trie.benchmark;
+
+import com.dsborets.trie.Record;
+import com.dsborets.trie.Trie;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build of the trie from the whole dictionary via put per word and via putAll
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildBenchmark {
+  @Param({"prefix", "radix", "terminal"})
+  private String mode;
+
+  private List<String> words;
+
+  private Map<Integer, Record> records;
+
+  @Setup
+  public void setUp() throws Exception {
+    words = Dictionary.load();
+    records = new HashMap<>();
+    for (int id = 0; id < words.size(); id++) {
+      records.put(id, new Record(words.get(id), String.valueOf(id)));
+    }
+  }
+
+  @Benchmark
+  public Trie<Integer, Integer, Record> build() {
+    return Dictionary.fill(newTrie(mode), Caffeine.newBuilder(), words);
+  }
+
+  @Benchmark
+  public Trie<Integer, Integer, Record> bulkBuild() {
+    Trie<Integer, Integer, Record> trie = newTrie(mode);
+    Caffeine caffeine = Caffeine.newBuilder();
+    trie.addCaffeine(1, caffeine, Dictionary.loader(words));
+    trie.putAll(1, records);
+    return trie;
+  }
+
+  static Trie<Integer, Integer, Record> newTrie(String mode) {
+    switch (mode) {
+      case "radix":
+        return Trie.newBuilder().pathCompression().build();
+      case "terminal":
+        return Trie.newBuilder().terminalPostings().build();
+      case "cached":
+        return Trie.newBuilder().prefixCache(4, 10_000).build();
+      default:
+        return Trie.newBuilder().build();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package com.dsborets.trie.benchmark;
+
+import com.dsborets.trie.Record;
+import com.dsborets.trie.Trie;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates of a built trie: put/remove churn and removal of entries evicted by the cache (via the cache writer)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChurnBenchmark {
+  @Param({"prefix", "radix", "terminal"})
+  private String mode;
+
+  private List<String> words;
+  private Trie<Integer, Integer, Record> trie;
+  private Trie<Integer, Integer, Record> boundedTrie;
+  private int id;
+
+  @Setup
+  public void setUp() throws Exception {
+    words = Dictionary.load();
+    trie = Dictionary.fill(BuildBenchmark.newTrie(mode), Caffeine.newBuilder(), words);
+    // only a half of the dictionary fits, so every put of a missing word evicts another one
+    boundedTrie = Dictionary.fill(BuildBenchmark.newTrie(mode), Caffeine.newBuilder()
+            .maximumSize(words.size() / 2)
+            .executor(Runnable::run), words);
+  }
+
+  /**
+   * Remove a word and put it back, so the size of the trie stays the same
+   */
+  @Benchmark
+  public void removeAndPut() {
+    int next = nextId();
+    trie.remove(1, next);
+    trie.put(1, next, new Record(words.get(next), String.valueOf(next)));
+  }
+
+  @Benchmark
+  public void putWithEviction() {
+    int next = nextId();
+    boundedTrie.put(1, next, new Record(words.get(next), String.valueOf(next)));
+  }
+
+  private int nextId() {
+    int next = id++;
+    if (id == words.size())
+      id = 0;
+    return next;
+  }
+}
@@ -0,0 +1,95 @@
+package com.dsborets.trie.benchmark;
+
+import com.dsborets.trie.Record;
+import com.dsborets.trie.Trie;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded mixes of prefix searches and updates of the same trie
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentBenchmark {
+  @Param({"prefix", "radix", "terminal"})
+  private String mode;
+
+  private List<String> words;
+  private Trie<Integer, Integer, Record> trie;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    private final Random random = new Random();
+
+    int nextId(int bound) {
+      return random.nextInt(bound);
+    }
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    words = Dictionary.load();
+    trie = Dictionary.fill(BuildBenchmark.newTrie(mode), Caffeine.newBuilder(), words);
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(3)
+  public Set<Record> readMostlySearch(Cursor cursor) {
+    return search(cursor);
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(1)
+  public void readMostlyUpdate(Cursor cursor) {
+    update(cursor);
+  }
+
+  @Benchmark
+  @Group("writeHeavy")
+  @GroupThreads(2)
+  public Set<Record> writeHeavySearch(Cursor cursor) {
+    return search(cursor);
+  }
+
+  @Benchmark
+  @Group("writeHeavy")
+  @GroupThreads(2)
+  public void writeHeavyUpdate(Cursor cursor) {
+    update(cursor);
+  }
+
+  private Set<Record> search(Cursor cursor) {
+    String word = words.get(cursor.nextId(words.size()));
+    return trie.getSet(word.substring(0, Math.min(word.length(), 5)));
+  }
+
+  private void update(Cursor cursor) {
+    int id = cursor.nextId(words.size());
+    trie.remove(1, id);
+    trie.put(1, id, new Record(words.get(id), String.valueOf(id)));
+  }
+}
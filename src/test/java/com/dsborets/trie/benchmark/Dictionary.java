@@ -0,0 +1,54 @@
+package com.dsborets.trie.benchmark;
+
+import com.dsborets.trie.Record;
+import com.dsborets.trie.Trie;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The dictionary the benchmarks are driven by (the same one the load test uses)
+ */
+final class Dictionary {
+  static final String PATH = "src/test/dictionary.txt.gz";
+
+  private Dictionary() {
+  }
+
+  static List<String> load() throws IOException {
+    List<String> words = new ArrayList<>();
+    try (Scanner input = new Scanner(new GZIPInputStream(new FileInputStream(PATH)))) {
+      while (input.hasNextLine()) {
+        words.add(input.nextLine());
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Build a trie of one cache keeping a record per word (the id of the record is the index of the word)
+   *
+   * @param trie     - empty trie
+   * @param caffeine - Caffeine object
+   * @param words    - dictionary
+   * @return the trie
+   */
+  static Trie<Integer, Integer, Record> fill(Trie<Integer, Integer, Record> trie, Caffeine caffeine,
+                                             List<String> words) {
+    trie.addCaffeine(1, caffeine, loader(words));
+    for (int id = 0; id < words.size(); id++) {
+      trie.put(1, id, new Record(words.get(id), String.valueOf(id)));
+    }
+    return trie;
+  }
+
+  static Function<Integer, Record> loader(List<String> words) {
+    return id -> new Record(words.get(id), String.valueOf(id));
+  }
+}
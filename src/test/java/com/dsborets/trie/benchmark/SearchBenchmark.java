@@ -0,0 +1,108 @@
+package com.dsborets.trie.benchmark;
+
+import com.dsborets.trie.Record;
+import com.dsborets.trie.Trie;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups and short or long prefix searches over the dictionary trie
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+  private static final int QUERIES = 1024;
+
+  @Param({"prefix", "radix", "terminal", "frozen", "cached"})
+  private String mode;
+
+  private Trie<Integer, Integer, Record> trie;
+  private String[] words;
+  private String[] shortPrefixes;
+  private String[] longPrefixes;
+  private char[][] chars;
+  private int idx;
+
+  @Setup
+  public void setUp() throws Exception {
+    List<String> dictionary = Dictionary.load();
+    trie = Dictionary.fill(BuildBenchmark.newTrie(mode), Caffeine.newBuilder(), dictionary);
+    if (mode.equals("frozen")) {
+      Path file = Files.createTempFile("trie", ".segment");
+      file.toFile().deleteOnExit();
+      trie.freeze(file);
+    }
+
+    Random random = new Random(42);
+    words = new String[QUERIES];
+    shortPrefixes = new String[QUERIES];
+    longPrefixes = new String[QUERIES];
+    chars = new char[QUERIES][];
+    for (int i = 0; i < QUERIES; ) {
+      String word = dictionary.get(random.nextInt(dictionary.size())).toLowerCase();
+      if (word.length() < 8)
+        continue;
+      words[i] = word;
+      shortPrefixes[i] = word.substring(0, Trie.DEFAULT_MIN_SEARCHABLE_KEY_LENGTH);
+      longPrefixes[i] = word.substring(0, 6);
+      chars[i] = word.toCharArray();
+      i++;
+    }
+  }
+
+  @Benchmark
+  public Set<Record> lookup() {
+    return trie.getSet(words[idx++ & (QUERIES - 1)]);
+  }
+
+  @Benchmark
+  public Set<Record> shortPrefix() {
+    return trie.getSet(shortPrefixes[idx++ & (QUERIES - 1)]);
+  }
+
+  @Benchmark
+  public Set<Record> longPrefix() {
+    return trie.getSet(longPrefixes[idx++ & (QUERIES - 1)]);
+  }
+
+  @Benchmark
+  public List<Record> fuzzy() {
+    return trie.searchFuzzy(longPrefixes[idx++ & (QUERIES - 1)], 1);
+  }
+
+  @Benchmark
+  public int count() {
+    return trie.count(shortPrefixes[idx++ & (QUERIES - 1)]);
+  }
+
+  /**
+   * Count by a prefix of a char array, neither the key nor the result is allocated
+   */
+  @Benchmark
+  public int countChars() {
+    char[] word = chars[idx++ & (QUERIES - 1)];
+    return trie.count(word, 0, 6);
+  }
+}